@@ -1,5 +1,32 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.IntStream;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  *
@@ -14,15 +41,262 @@ import java.util.List;
 
 public class AVLTree {
 	
+	public static final long NO_DEADLINE = Long.MAX_VALUE; // the deadline of an item that never expires
+	private static final int SEARCH_GROUP = 16; // the descents searchAll runs in lockstep
+	private static final int STATS_ATTEMPTS = 3; // walks of stats() before it settles for one that overlapped a change
+	
 	private IAVLNode root;
 	private IAVLNode min;
 	private IAVLNode max;
+	private TreeMetrics metrics; // null when instrumentation is disabled
+	private final Aggregator aggregator; // null when the tree keeps no subtree aggregates
+	private final boolean weak; // WAVL rank rule: rank differences 1 or 2, every leaf of rank 0
+	private boolean concurrentReads; // searches may run on other threads while one thread writes
+	private volatile long version; // odd while a structural change is in progress (concurrent reads mode)
+	private int writeDepth; // nesting of the structural changes in progress
+	private LongAdder readRetries; // searches retried after overlapping a structural change
+	private SearchCache cache; // null when search is not cached
+	private IAVLNode finger; // the node of the last insert or finger operation, null if there is none
+	private ChangeLog changeLog; // null when the changes are not published
+	private boolean hashed; // every node keeps the hash of its subtree's items
+	private AVLNode[] pool; // removed nodes kept for reuse by insert, null when nodes are not recycled
+	private int pooled; // the number of nodes in the pool
+	private ExpiryHeap expiries; // (deadline, key) of the expiring items, null if none was set
 	
 	
 	public AVLTree() { // Constructor 
+		this(null, false);
+	}
+	
+	public AVLTree(Aggregator aggregator) { // Constructor of a tree keeping 'aggregator' over every subtree
+		this(aggregator, false);
+	}
+	
+	public AVLTree(boolean weak) { // Constructor of a weak AVL (WAVL) tree if 'weak' is true
+		this(null, weak);
+	}
+	
+	public AVLTree(Aggregator aggregator, boolean weak) { // Constructor
 		this.root = null;
 		this.min = null;
 		this.max = null;
+		this.metrics = null;
+		this.aggregator = aggregator;
+		this.weak = weak;
+	}
+	
+	/**
+	 * public boolean isWeak()
+	 * 
+	 * returns true if the tree keeps the weak AVL (WAVL) rank rule instead of the AVL rule:
+	 * every rank difference is 1 or 2 (2,2 nodes are allowed) and every leaf has rank 0.
+	 * insert rebalances exactly as in an AVL tree, so a tree built by inserts alone is an AVL tree,
+	 * while delete makes at most 2 rotations and O(1) amortized rank changes.
+	 * the height stays below 2logn, and below 1.44logn without deletes.
+	 * complexity: O(1).
+	 */
+	public boolean isWeak() {
+		return this.weak;
+	}
+	
+	/**
+	 * public void setConcurrentReads(boolean concurrentReads)
+	 * 
+	 * enables (or disables) the single-writer / multi-reader mode: search may then be called by any number
+	 * of threads while one thread runs all the other operations, without any lock.
+	 * the writer wraps every structural change (linking, unlinking, each single rotation, split, join)
+	 * with two increments of a version counter, and a search that overlapped one of them retries.
+	 * promotions, demotions and size updates do not touch the search paths and are not wrapped.
+	 * removed nodes are left to the garbage collector, so a reader still standing on one stays safe.
+	 * must be set before the tree is shared, and while no operation is in progress.
+	 * complexity: O(1).
+	 */
+	public void setConcurrentReads(boolean concurrentReads) {
+		this.concurrentReads = concurrentReads;
+		if (concurrentReads && (readRetries == null)) {
+			readRetries = new LongAdder();
+		}
+	}
+	
+	/**
+	 * public long getReadRetries()
+	 * 
+	 * returns the number of searches retried in concurrent reads mode
+	 * complexity: O(number of reader threads).
+	 */
+	public long getReadRetries() {
+		return (readRetries == null) ? 0 : readRetries.sum();
+	}
+	
+	/**
+	 * public void setChangeLog(ChangeLog changeLog)
+	 * 
+	 * publishes every successful insert and delete, and every split and join of the tree into 'changeLog',
+	 * or stops publishing if changeLog is null. bulkLoad and setWeight are not published.
+	 * a change is published after the operation completes, and may wait there for slow consumers.
+	 * complexity: O(1).
+	 */
+	public void setChangeLog(ChangeLog changeLog) {
+		this.changeLog = changeLog;
+	}
+	
+	public ChangeLog getChangeLog() {
+		return this.changeLog;
+	}
+	
+	/**
+	 * public void setNodePool(int capacity)
+	 * 
+	 * keeps up to 'capacity' of the nodes removed by delete and split for reuse by insert,
+	 * or stops recycling if capacity <= 0. a delete followed by an insert then allocates nothing.
+	 * nodes are not recycled in concurrent reads mode, where a reader may still stand on a removed node.
+	 * a node returned by getRoot, getMin or getMax must not be kept past the removal of its item.
+	 * complexity: O(1).
+	 */
+	public void setNodePool(int capacity) {
+		this.pool = (capacity > 0) ? new AVLNode[capacity] : null;
+		this.pooled = 0;
+	}
+	
+	/**
+	 * public int getPooledNodes()
+	 * 
+	 * returns the number of removed nodes waiting in the pool for reuse
+	 * complexity: O(1).
+	 */
+	public int getPooledNodes() {
+		return this.pooled;
+	}
+	
+	/**
+	 * private AVLNode newNode(int k, String i, long weight, IAVLNode parent)
+	 * 
+	 * returns a real leaf with the item, taken from the pool if it has one
+	 * complexity: O(1).
+	 */
+	private AVLNode newNode(int k, String i, long weight, IAVLNode parent) {
+		if (pooled == 0) {
+			return createNode(k, i, weight, parent);
+		}
+		AVLNode node = pool[--pooled];
+		pool[pooled] = null;
+		node.reset(k, i, weight, parent);
+		return node;
+	}
+	
+	/**
+	 * protected AVLNode createNode(int k, String i, long weight, IAVLNode parent)
+	 * 
+	 * allocates a real leaf with the item for insert and bulkLoad, a subclass may return its own kind of node
+	 * complexity: O(1).
+	 */
+	protected AVLNode createNode(int k, String i, long weight, IAVLNode parent) {
+		return new AVLNode(k, i, weight, parent);
+	}
+	
+	/**
+	 * protected AVLTree createTree()
+	 * 
+	 * returns a new empty tree with the aggregator and balancing of this one,
+	 * for the trees made by split and extractRange
+	 * complexity: O(1).
+	 */
+	protected AVLTree createTree() {
+		return new AVLTree(aggregator, weak);
+	}
+	
+	/**
+	 * private void recycle(IAVLNode node)
+	 * 
+	 * puts a node that was removed from the tree into the pool, if there is room and no reader may see it.
+	 * the pooled node is detached, so the pool keeps nothing of the removed items reachable.
+	 * complexity: O(1).
+	 */
+	private void recycle(IAVLNode node) {
+		if ((pool != null) && !concurrentReads && (pooled < pool.length)) {
+			((AVLNode)node).detach();
+			pool[pooled++] = (AVLNode)node;
+		}
+	}
+	
+	/**
+	 * public void setSearchCache(int capacity)
+	 * 
+	 * puts a read-through cache of up to 'capacity' found keys in front of search, or removes it if capacity <= 0.
+	 * delete drops the key from the cache, split and bulkLoad clear it, and join clears the cache of the tree
+	 * it consumes. misses are not cached, so insert never leaves a stale entry.
+	 * the cache is not thread safe and is bypassed in concurrent reads mode.
+	 * complexity: O(capacity).
+	 */
+	public void setSearchCache(int capacity) {
+		this.cache = (capacity > 0) ? new SearchCache(capacity) : null;
+	}
+	
+	/**
+	 * public SearchCache getSearchCache()
+	 * 
+	 * returns the cache in front of search, or null if search is not cached
+	 * complexity: O(1).
+	 */
+	public SearchCache getSearchCache() {
+		return this.cache;
+	}
+	
+	/**
+	 * private void beginWrite()
+	 * 
+	 * starts a structural change: in concurrent reads mode the version becomes odd
+	 * before any pointer of the change is written
+	 * complexity: O(1).
+	 */
+	private void beginWrite() {
+		if (concurrentReads && (writeDepth++ == 0)) {
+			version = version + 1; // single writer
+			VarHandle.storeStoreFence(); // the following pointer writes may not move above the version
+		}
+	}
+	
+	/**
+	 * private void endWrite()
+	 * 
+	 * ends a structural change: the version becomes even after all its writes
+	 * complexity: O(1).
+	 */
+	private void endWrite() {
+		if (concurrentReads && (--writeDepth == 0)) {
+			version = version + 1; // volatile write, publishes the change
+		}
+	}
+	
+	/**
+	 * public Aggregator getAggregator()
+	 * 
+	 * returns the aggregator kept over every subtree, or null if there is none
+	 * complexity: O(1).
+	 */
+	public Aggregator getAggregator() {
+		return this.aggregator;
+	}
+	
+	/**
+	 * public void setMetrics(TreeMetrics metrics)
+	 * 
+	 * enables instrumentation of the tree operations into 'metrics', or disables it if metrics is null.
+	 * a disabled tree only pays a null check per operation and allocates nothing.
+	 * complexity: O(1).
+	 */
+	public void setMetrics(TreeMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * public TreeMetrics getMetrics()
+	 * 
+	 * returns the metrics the tree records into, or null if instrumentation is disabled
+	 * complexity: O(1).
+	 */
+	public TreeMetrics getMetrics() {
+		return this.metrics;
 	}
 	/**
 	 * public IAVLNode getMin()
@@ -98,11 +372,154 @@ public class AVLTree {
    * complexity = recSearch complexity= O(logn).
    */
   public String search(int k) {
+	  if (concurrentReads) {
+		  return optimisticSearch(k);
+	  }
+	  if (cache == null) {
+		  return uncachedSearch(k);
+	  }
+	  String valueToReturn = cache.get(k);
+	  if (valueToReturn == null) { // a miss, or a key not in the tree
+		  valueToReturn = uncachedSearch(k);
+		  if (valueToReturn != null) {
+			  cache.put(k, valueToReturn);
+		  }
+	  }
+	  return valueToReturn;
+	}
+  
+  /**
+   * public void searchAll(int[] keys, String[] out)
+   *
+   * sets out[j] = search(keys[j]) for every j.
+   * the keys are sorted first, so neighbouring lookups share the top of their paths in the cache,
+   * and then descend SEARCH_GROUP at a time in lockstep: each round moves every unfinished descent
+   * of the group one level down, so the cache misses of independent descents overlap instead of
+   * waiting for each other. repeated keys are looked up once.
+   * with a cache, metrics or concurrent reads, it is a loop over search.
+   * complexity: O(m logm + m logn) for m keys.
+   */
+  public void searchAll(int[] keys, String[] out) {
+	  if (out.length < keys.length) {
+		  throw new IllegalArgumentException("out has " + out.length + " slots for " + keys.length + " keys");
+	  }
+	  if (concurrentReads || (cache != null) || (metrics != null) || empty()) {
+		  for (int j = 0; j < keys.length; j++) {
+			  out[j] = search(keys[j]);
+		  }
+		  return;
+	  }
+	  long[] order = new long[keys.length]; // key in the high half, its index in the low half
+	  for (int j = 0; j < keys.length; j++) {
+		  order[j] = ((long) keys[j] << 32) | j;
+	  }
+	  Arrays.sort(order);
+	  IAVLNode[] nodes = new IAVLNode[SEARCH_GROUP];
+	  int[] targets = new int[SEARCH_GROUP];
+	  int from = 0;
+	  while (from < order.length) {
+		  int group = 0;
+		  int end = from;
+		  while ((end < order.length) && (group < SEARCH_GROUP)) { // distinct keys of the next group
+			  int key = (int) (order[end] >> 32);
+			  if ((group == 0) || (key != targets[group - 1])) {
+				  targets[group] = key;
+				  nodes[group] = getRoot();
+				  group++;
+			  }
+			  end++;
+		  }
+		  for (int active = group; active > 0; ) { // one level of every unfinished descent per round
+			  active = 0;
+			  for (int g = 0; g < group; g++) {
+				  IAVLNode node = nodes[g];
+				  if (node.isRealNode() && (node.getKey() != targets[g])) {
+					  nodes[g] = (node.getKey() < targets[g]) ? node.getRight() : node.getLeft();
+					  active++;
+				  }
+			  }
+		  }
+		  for (int g = -1; from < end; from++) { // the descents are in the order of the sorted keys
+			  int key = (int) (order[from] >> 32);
+			  if ((g < 0) || (key != targets[g])) {
+				  g++;
+			  }
+			  out[(int) order[from]] = nodes[g].isRealNode() ? nodes[g].getValue() : null;
+		  }
+	  }
+  }
+  
+  /**
+   * private String uncachedSearch(int k)
+   *
+   * search(k) from the root, recorded into the metrics if there are any
+   * complexity: O(logn).
+   */
+  private String uncachedSearch(int k) {
+	  if (metrics != null) {
+		  return recordedSearch(k);
+	  }
 	  if (empty()) { return null; }
 	  IAVLNode currNode = getRoot();
 	  String valueToReturn = recSearch(k, currNode);
 	  return valueToReturn;
-	}
+  }
+  
+  /**
+   * private String optimisticSearch(int k)
+   *
+   * search(k) for concurrent reads mode: reads the version, searches without any lock,
+   * and retries if the version was odd or changed meanwhile (a structural change overlapped).
+   * the walk is bounded and checks for null, so a torn path can only cause a retry.
+   * complexity = O(logn) per attempt.
+   */
+  private String optimisticSearch(int k) {
+	  while (true) {
+		  long stamp = version;
+		  if ((stamp & 1) == 0) {
+			  String valueToReturn = null;
+			  IAVLNode node = getRoot();
+			  for (int steps = 0; (node != null) && node.isRealNode() && (steps < TreeStats.MAX_WALK); steps++) {
+				  int key = node.getKey();
+				  if (key == k) {
+					  valueToReturn = node.getValue();
+					  break;
+				  }
+				  node = (key < k) ? node.getRight() : node.getLeft();
+			  }
+			  VarHandle.acquireFence(); // the reads above may not move below the version check
+			  if (version == stamp) {
+				  return valueToReturn;
+			  }
+		  }
+		  readRetries.increment();
+		  Thread.onSpinWait();
+	  }
+  }
+  
+  /**
+   * private String recordedSearch(int k)
+   *
+   * search(k) that records its latency and the length of its search path in the metrics
+   * complexity: O(logn).
+   */
+  private String recordedSearch(int k) {
+	  long start = System.nanoTime();
+	  int pathLength = 0;
+	  IAVLNode node = getRoot();
+	  while ((node != null) && node.isRealNode() && (node.getKey() != k)) {
+		  pathLength++;
+		  node = (k < node.getKey()) ? node.getLeft() : node.getRight();
+	  }
+	  String valueToReturn = null;
+	  if ((node != null) && node.isRealNode()) { // found
+		  pathLength++;
+		  valueToReturn = node.getValue();
+	  }
+	  metrics.recordSearch(pathLength);
+	  metrics.record(Operation.SEARCH, start, 0);
+	  return valueToReturn;
+  }
   /**
    * private String recSearch(int k, IAVLNode node)
    *
@@ -140,96 +557,345 @@ public class AVLTree {
    * complexity: O(logn).
    */
    public int insert(int k, String i) {
+	   return insert(k, i, 0);
+   }
+   
+   /**
+    * public int insert(int k, String i, long weight)
+    *
+    * inserts an item with key k, info i and numeric value 'weight' (aggregated by a WEIGHT aggregator).
+    * returns as insert(k, i).
+    * complexity: O(logn).
+    */
+   public int insert(int k, String i, long weight) {
+	   long start = (metrics == null) ? 0 : System.nanoTime();
+	   int rebalancing = insertItem(k, i, weight);
+	   if (metrics != null) {
+		   metrics.record(Operation.INSERT, start, rebalancing);
+	   }
+	   if ((changeLog != null) && (rebalancing >= 0)) {
+		   changeLog.publish(Operation.INSERT, k, i, weight);
+	   }
+	   return rebalancing;
+   }
+   
+   /**
+    * private int insertItem(int k, String i, long weight)
+    *
+    * the uninstrumented insert(k, i, weight)
+    * complexity: O(logn).
+    */
+   private int insertItem(int k, String i, long weight) {
 	   	   
 	   if (empty()) { // insert the root
-		  IAVLNode rootToInsert = new AVLNode(k, i, null); 
+		  IAVLNode rootToInsert = newNode(k, i, weight, null); 
+		  beginWrite();
 		  this.setRoot(rootToInsert); 
+		  endWrite();
 		  this.setMin(rootToInsert); 
 		  this.setMax(rootToInsert); 
+		  this.finger = rootToInsert;
 		  return 0;  // no need for rebalancing operations
 	  }
 	   
+	   if (k > this.getMax().getKey()) { // appending, the maximum has no right child
+		   return insertAt(this.getMax(), k, i, weight);
+	   }
+	   if (k < this.getMin().getKey()) { // prepending, the minimum has no left child
+		   return insertAt(this.getMin(), k, i, weight);
+	   }
 	   IAVLNode root = getRoot(); 
-	   IAVLNode currentNode = treeInsert(root, k, i); // insert node with key k and value i, returns the node
-	   if (currentNode == null) { // the key is already exist in the tree
-		   return -1;
+	   return insertAt(treePosition(root, k), k, i, weight);
+   } 
+   
+   /**
+    * public int insertExpiring(int k, String i, long deadline)
+    *
+    * inserts an item that expire(now, maxItems) removes once now >= deadline.
+    * the deadline is in the caller's time unit, NO_DEADLINE never expires.
+    * returns as insert(k, i).
+    * complexity: O(logn).
+    */
+   public int insertExpiring(int k, String i, long deadline) {
+	   int rebalancing = insert(k, i, 0);
+	   if (rebalancing >= 0) { // the finger is the new node
+		   scheduleExpiry((AVLNode)finger, deadline);
 	   }
-	   
-	   int rebalancing = insertRebalance(currentNode); // rebalancing the tree, returns the number of rebalancing operations
-	   insertUpdate(currentNode, k); // update size, height, min and max
 	   return rebalancing;
-   } 
+   }
+   
    /**
-    * private int insertRebalance(IAVLNode currentNode)
+    * public boolean setDeadline(int k, long deadline)
     *
-    * Receives the node that was inserted (currentNode) and rebalance the tree
-    * promote and move forward in the tree as long as possible, then if the the is not balanced -> rotate/ double rotate 
-    * pre condition: currentNode is not null, the tree is not balanced
-    * returns the number of rebalancing operations
+    * sets (or, with NO_DEADLINE, cancels) the deadline of the item with key k.
+    * returns false if there is no such item.
     * complexity: O(logn).
     */
-	private int insertRebalance(IAVLNode currentNode) {
-		int rebalancing = 0;
-		
-		while ((currentNode.getParent() != null) && (!(isBalanced(currentNode.getParent()))) && (canPromote(currentNode.getParent()))) { 
-			// currentNode is not the root, promote is possible and the tree is not balanced 
-			promote(currentNode.getParent());
-			rebalancing ++;
-			currentNode = currentNode.getParent(); // move towards the root
-		}
-		if (currentNode.getParent() == null) { // reached the root -> done
-			return rebalancing;
-		}
-		if (!(isBalanced(currentNode.getParent()))){ // can't promote but the tree is not balanced 
-			if (rankDifferenceLeft(currentNode.getParent()) == 0) { // node's parent is 0,2
-				if (rankDifferenceLeft(currentNode) == 1) { // node is 1,2 -> single right rotation
-					rebalancing += singleRightRotation(currentNode.getParent(), 3); 
- 				}
-				else { // node is 2,1 -> double rotation (LR)
-					IAVLNode parent = currentNode.getParent();
-					rebalancing += singleLeftRotation(currentNode, 3);
-					rebalancing += singleRightRotation(parent, 2);
-					} 
-			}
-			else { // node's parent is 2,0 (symmetric cases)
-				if (rankDifferenceRight(currentNode) == 1) { // node is 2,1 -> single left rotation
-					rebalancing += singleLeftRotation(currentNode.getParent(), 3); 
-				}
-				else { // node is 1,2 -> double rotation (RL)
-					IAVLNode parent = currentNode.getParent();
-					rebalancing += singleRightRotation(currentNode, 3); 
-					rebalancing += singleLeftRotation(parent, 2);
-					} 
-			}
-		}
-		return rebalancing;	
-	}
-	
-	/**
-	 * private void insertUpdate(IAVLNode currentNode, int k)
-	 * 
-	 * update the size and height of the inserted node and the rest of the nodes up to the root
-	 * update the minimum and maximum of the tree if necessary
-	 * complexity: O(logn).
-	 */
-	private void insertUpdate(IAVLNode currentNode, int k) {
-	
-		if ((this.getMin() == null) || (k < this.getMin().getKey())) { // update minimum 
-			this.setMin(currentNode);;
-		}
-		if ((this.getMax() == null) || (k > this.getMax().getKey())) { // update maximum
-			this.setMax(currentNode);
-		}
-		while (currentNode.getParent() != null) { 
-			update(currentNode.getParent()); // updates the size and the height of the node
-			currentNode = currentNode.getParent();
-		}
-		
+   public boolean setDeadline(int k, long deadline) {
+	   IAVLNode node = empty() ? null : recSearchNode(k, getRoot());
+	   if (node == null) {
+		   return false;
+	   }
+	   scheduleExpiry((AVLNode)node, deadline);
+	   return true;
    }
+   
    /**
-    * private int singleLeftRotation(IAVLNode node, int caseNumber)
-    * 
-    * rotate the received node once to the left
+    * public long getDeadline(int k)
+    *
+    * returns the deadline of the item with key k, or NO_DEADLINE if it has none or is not in the tree
+    * complexity: O(logn).
+    */
+   public long getDeadline(int k) {
+	   IAVLNode node = empty() ? null : recSearchNode(k, getRoot());
+	   return (node == null) ? NO_DEADLINE : ((AVLNode)node).getDeadline();
+   }
+   
+   /**
+    * public long nextDeadline()
+    *
+    * returns the earliest deadline of an item in the tree, or NO_DEADLINE if no item expires
+    * complexity: O(logn) amortized.
+    */
+   public long nextDeadline() {
+	   while ((expiries != null) && (expiries.size() > 0)) {
+		   if (isScheduled(expiries.peekKey(), expiries.peekDeadline())) {
+			   return expiries.peekDeadline();
+		   }
+		   expiries.pop(); // stale
+	   }
+	   return NO_DEADLINE;
+   }
+   
+   /**
+    * public int expire(long now, int maxItems)
+    *
+    * deletes up to maxItems of the items whose deadline is <= now, earliest deadline first,
+    * and returns how many were deleted. the tree is never scanned: the deadlines are kept in a
+    * min-heap of (deadline, key) beside the tree, so a periodic call costs only the items it removes.
+    * heap entries left behind by deletes and changed deadlines are discarded when they surface,
+    * and the heap is compacted when they outnumber the items of the tree.
+    * the deadlines move with their items: split, join and extractRange carry the heap entries over,
+    * deleteRange leaves them behind as stale,
+    * bulkLoad drops them, and the node joined by join(x, t) keeps only a deadline set on it in this tree.
+    * complexity: O(maxItems * logn), plus O(logn) amortized per discarded entry.
+    */
+   public int expire(long now, int maxItems) {
+	   int expired = 0;
+	   while ((expired < maxItems) && (expiries != null) && (expiries.size() > 0) && (expiries.peekDeadline() <= now)) {
+		   int key = expiries.peekKey();
+		   boolean scheduled = isScheduled(key, expiries.peekDeadline());
+		   expiries.pop();
+		   if (scheduled) {
+			   delete(key);
+			   expired++;
+		   }
+	   }
+	   return expired;
+   }
+   
+   /**
+    * private void scheduleExpiry(AVLNode node, long deadline)
+    *
+    * sets node's deadline and adds it to the heap, whose older entries for node become stale
+    * complexity: O(logn) amortized.
+    */
+   private void scheduleExpiry(AVLNode node, long deadline) {
+	   node.setDeadline(deadline);
+	   if (deadline == NO_DEADLINE) {
+		   return;
+	   }
+	   if (expiries == null) {
+		   expiries = new ExpiryHeap();
+	   }
+	   if (expiries.size() > 2 * size() + 64) { // mostly stale entries
+		   expiries.retain(this::isScheduled);
+	   }
+	   expiries.push(deadline, node.getKey());
+   }
+   
+   /**
+    * private void moveExpiries(AVLTree target, long low, long high)
+    *
+    * moves the heap entries of the keys in [low, high] to target's heap, after their items moved to target
+    * complexity: O(number of heap entries).
+    */
+   private void moveExpiries(AVLTree target, long low, long high) {
+	   if ((expiries == null) || (target == this)) {
+		   return;
+	   }
+	   expiries.retain((key, deadline) -> {
+		   if ((key < low) || (key > high)) {
+			   return true;
+		   }
+		   if (target.expiries == null) {
+			   target.expiries = new ExpiryHeap();
+		   }
+		   target.expiries.push(deadline, key);
+		   return false;
+	   });
+   }
+   
+   /**
+    * private void handOverExpiries(AVLTree range, int lo, int hi)
+    *
+    * gives range, the items of [lo, hi] taken out of the tree, the heap entries of its expiring items:
+    * walks range when it has fewer items than the heap has entries, leaving this heap's entries to go stale,
+    * and else moves the entries of [lo, hi] over.
+    * complexity: O(min(k, h)) for the k items of range and h heap entries.
+    */
+   private void handOverExpiries(AVLTree range, int lo, int hi) {
+	   if ((expiries == null) || range.empty()) {
+		   return;
+	   }
+	   if (range.size() < expiries.size()) {
+		   range.pushExpiries(range.getRoot());
+	   }
+	   else {
+		   moveExpiries(range, lo, hi);
+	   }
+   }
+   
+   /**
+    * private void pushExpiries(IAVLNode node)
+    *
+    * adds a heap entry for every item with a deadline in the subtree of node
+    * complexity: O(k) for k items in the subtree, plus O(logn) per pushed entry.
+    */
+   private void pushExpiries(IAVLNode node) {
+	   while (node.isRealNode()) {
+		   pushExpiries(node.getLeft());
+		   long deadline = ((AVLNode)node).getDeadline();
+		   if (deadline != NO_DEADLINE) {
+			   if (expiries == null) {
+				   expiries = new ExpiryHeap();
+			   }
+			   expiries.push(deadline, node.getKey());
+		   }
+		   node = node.getRight();
+	   }
+   }
+   
+   /**
+    * private boolean isScheduled(int key, long deadline)
+    *
+    * returns true if the heap entry (deadline, key) is still the deadline of an item in the tree
+    * complexity: O(logn).
+    */
+   private boolean isScheduled(int key, long deadline) {
+	   IAVLNode node = empty() ? null : recSearchNode(key, getRoot());
+	   return (node != null) && (((AVLNode)node).getDeadline() == deadline);
+   }
+   
+   /**
+    * public int append(int k, String i)
+    *
+    * inserts an item whose key is larger than every key in the tree, as the right child of the maximum.
+    * promotions and rotations happen only along the right spine.
+    * insert(k, i) takes the same path by itself for such keys, append also checks the order.
+    * returns as insert(k, i), throws IllegalArgumentException if k is not larger than the maximum.
+    * complexity: O(1) amortized rebalancing, O(logn) size and height updates.
+    */
+   public int append(int k, String i) {
+	   if (!empty() && (k <= this.getMax().getKey())) {
+		   throw new IllegalArgumentException("appended key " + k + " is not larger than the maximum " + this.getMax().getKey());
+	   }
+	   return insert(k, i, 0);
+   }
+   
+   /**
+    * private int insertAt(IAVLNode position, int k, String i, long weight)
+    *
+    * inserts the item below 'position', the result of treePosition or fingerPosition for k,
+    * rebalances and moves the finger to the new node.
+    * returns as insert(k, i).
+    * complexity: O(logn).
+    */
+   private int insertAt(IAVLNode position, int k, String i, long weight) {
+	   IAVLNode currentNode = treeInsert(position, k, i, weight); // insert node with key k and value i, returns the node
+	   if (currentNode == null) { // the key is already exist in the tree
+		   return -1;
+	   }
+	   
+	   int rebalancing = insertRebalance(currentNode); // rebalancing the tree, returns the number of rebalancing operations
+	   insertUpdate(currentNode, k); // update size, height, min and max
+	   this.finger = currentNode;
+	   return rebalancing;
+   }
+
+   /**
+    * private int insertRebalance(IAVLNode currentNode)
+    *
+    * Receives the node that was inserted (currentNode) and rebalance the tree
+    * promote and move forward in the tree as long as possible, then if the the is not balanced -> rotate/ double rotate 
+    * pre condition: currentNode is not null, the tree is not balanced
+    * returns the number of rebalancing operations
+    * complexity: O(logn).
+    */
+	private int insertRebalance(IAVLNode currentNode) {
+		int rebalancing = 0;
+		
+		while ((currentNode.getParent() != null) && (!(isBalanced(currentNode.getParent()))) && (canPromote(currentNode.getParent()))) { 
+			// currentNode is not the root, promote is possible and the tree is not balanced 
+			promote(currentNode.getParent());
+			rebalancing ++;
+			currentNode = currentNode.getParent(); // move towards the root
+		}
+		if (currentNode.getParent() == null) { // reached the root -> done
+			return rebalancing;
+		}
+		if (!(isBalanced(currentNode.getParent()))){ // can't promote but the tree is not balanced 
+			if (rankDifferenceLeft(currentNode.getParent()) == 0) { // node's parent is 0,2
+				if (rankDifferenceLeft(currentNode) == 1) { // node is 1,2 -> single right rotation
+					rebalancing += singleRightRotation(currentNode.getParent(), 3); 
+ 				}
+				else { // node is 2,1 -> double rotation (LR)
+					IAVLNode parent = currentNode.getParent();
+					countDoubleRotation();
+					rebalancing += singleLeftRotation(currentNode, 3);
+					rebalancing += singleRightRotation(parent, 2);
+					} 
+			}
+			else { // node's parent is 2,0 (symmetric cases)
+				if (rankDifferenceRight(currentNode) == 1) { // node is 2,1 -> single left rotation
+					rebalancing += singleLeftRotation(currentNode.getParent(), 3); 
+				}
+				else { // node is 1,2 -> double rotation (RL)
+					IAVLNode parent = currentNode.getParent();
+					countDoubleRotation();
+					rebalancing += singleRightRotation(currentNode, 3); 
+					rebalancing += singleLeftRotation(parent, 2);
+					} 
+			}
+		}
+		return rebalancing;	
+	}
+	
+	/**
+	 * private void insertUpdate(IAVLNode currentNode, int k)
+	 * 
+	 * update the size and height of the inserted node and the rest of the nodes up to the root
+	 * update the minimum and maximum of the tree if necessary
+	 * complexity: O(logn).
+	 */
+	private void insertUpdate(IAVLNode currentNode, int k) {
+	
+		if ((this.getMin() == null) || (k < this.getMin().getKey())) { // update minimum 
+			this.setMin(currentNode);;
+		}
+		if ((this.getMax() == null) || (k > this.getMax().getKey())) { // update maximum
+			this.setMax(currentNode);
+		}
+		while (currentNode.getParent() != null) { 
+			update(currentNode.getParent()); // updates the size and the height of the node
+			currentNode = currentNode.getParent();
+		}
+		
+   }
+   /**
+    * private int singleLeftRotation(IAVLNode node, int caseNumber)
+    * 
+    * rotate the received node once to the left
     * return the number of rebalancing: 1 for the rotation itself and the rest for the promote and demote
     * updates the size and the height of the affected nodes
     * the int caseNumber states the promotion and demotion operations:
@@ -241,6 +907,10 @@ public class AVLTree {
    private int singleLeftRotation(IAVLNode node, int caseNumber) { 	   
 	   IAVLNode r = node.getRight();
 	   IAVLNode rl = r.getLeft();
+	   if (metrics != null) {
+		   metrics.rotations++;
+	   }
+	   beginWrite();
 	   
 	   if (node.getParent() != null) { // node is not the root
 		   if (((AVLNode)node).isLeftChild()) {
@@ -261,6 +931,7 @@ public class AVLTree {
 	   node.setParent(r);
 	   node.setRight(rl);
 	   rl.setParent(node);
+	   endWrite();
 	  
 	   // updates size and height
 	   update(rl);
@@ -300,6 +971,10 @@ public class AVLTree {
    private int singleRightRotation(IAVLNode node, int caseNumber) { 
 	   IAVLNode l = node.getLeft();
 	   IAVLNode lr = l.getRight();
+	   if (metrics != null) {
+		   metrics.rotations++;
+	   }
+	   beginWrite();
 	   
 	   if (node.getParent() != null) { // node is not the root
 		   if (((AVLNode)node).isLeftChild()) {
@@ -319,6 +994,7 @@ public class AVLTree {
 	   node.setParent(l);
 	   node.setLeft(lr);
 	   lr.setParent(node);
+	   endWrite();
 	   
 	   // update size and height
 	   update(lr);
@@ -361,6 +1037,9 @@ public class AVLTree {
     * complexity: O(1).
     */
    private void promote(IAVLNode node) {
+	   if (metrics != null) {
+		   metrics.promotions++;
+	   }
 	   int updatedRank = ((AVLNode)node).getRank() + 1; 
 	   ((AVLNode)node).setRank(updatedRank);
    }
@@ -370,9 +1049,22 @@ public class AVLTree {
     * complexity: O(1).
     */
    private void demote(IAVLNode node) { 
+	   if (metrics != null) {
+		   metrics.demotions++;
+	   }
 	   int updatedRank = ((AVLNode) node).getRank() - 1; 
 	   ((AVLNode)node).setRank(updatedRank); 
    }
+   /**
+    * counts a double rotation, its two single rotations are counted by the rotations themselves
+    * complexity: O(1).
+    */
+   private void countDoubleRotation() {
+	   if (metrics != null) {
+		   metrics.doubleRotations++;
+	   }
+   }
+   
    /**
     * update the size and the height of the node
     * using only the right and left children of the node
@@ -387,16 +1079,25 @@ public class AVLTree {
 	   int rightHeight = parent.getRight().getHeight();
 	   int leftHight = parent.getLeft().getHeight();
 	   ((AVLNode)parent).setHeight((Math.max(rightHeight, leftHight)) + 1); // update height
+	   if (aggregator != null) { // update the subtree aggregate
+		   ((AVLNode)parent).setAggregate(aggregate(parent));
+	   }
+	   if (hashed) { // update the subtree hash
+		   ((AVLNode)parent).setHash(((AVLNode)parent.getLeft()).getHash() + itemHash(parent.getKey(), parent.getValue()) + ((AVLNode)parent.getRight()).getHash());
+	   }
 }
 
 /**
-    * returns true if 'node' if 1,1 or 1,2 or 2,1
+    * returns true if 'node' if 1,1 or 1,2 or 2,1 (or 2,2 in a weak tree)
     * returns false otherwise
     * complexity: O(1).
     */
    private boolean isBalanced(IAVLNode node) {
 	  int rankDifferenceLeft = rankDifferenceLeft(node);
 	  int rankDifferenceRight = rankDifferenceRight(node);
+	  if (weak && (rankDifferenceLeft == 2) && (rankDifferenceRight == 2)) {
+		  return true;
+	  }
 	  if ((rankDifferenceLeft == 1 && rankDifferenceRight == 1) || (rankDifferenceLeft == 1 && rankDifferenceRight == 2) || (rankDifferenceLeft == 2 && rankDifferenceRight == 1)) {
 		  return true;
 	  }
@@ -451,28 +1152,95 @@ public class AVLTree {
 	   }
 	   return position;
    }
+   
+   /**
+    * private IAVLNode fingerPosition(int k)
+    *
+    * treePosition for k, starting from the finger instead of the root: keys beyond the minimum or maximum
+    * start there, otherwise the walk climbs from the finger until the subtree below it must hold k
+    * (k lies between the node's key and the parent it hangs from), then descends.
+    * pre condition: the tree is not empty
+    * complexity: O(log d) for the d keys between k and the finger, when the finger's
+    * ancestors below their common subtree are not much higher than it; O(logn) in the worst case.
+    */
+   private IAVLNode fingerPosition(int k) {
+	   if (k <= this.getMin().getKey()) { // the minimum has no left child
+		   return this.getMin();
+	   }
+	   if (k >= this.getMax().getKey()) { // the maximum has no right child
+		   return this.getMax();
+	   }
+	   IAVLNode node = (finger != null) ? finger : getRoot();
+	   while ((node.getParent() != null) && (node.getKey() != k)) {
+		   IAVLNode parent = node.getParent();
+		   if (k > node.getKey() ? ((parent.getLeft() == node) && (k < parent.getKey()))
+				   : ((parent.getRight() == node) && (k > parent.getKey()))) { // node's subtree covers k
+			   break;
+		   }
+		   node = parent;
+	   }
+	   return treePosition(node, k);
+   }
+   
+   /**
+    * public String fingerSearch(int k)
+    *
+    * search(k) starting from the finger, which then moves to the last node visited.
+    * like insert, it is not one of the operations that may run concurrently with the writer.
+    * complexity: O(log d) for the d keys between k and the finger (see fingerPosition).
+    */
+   public String fingerSearch(int k) {
+	   if (empty()) {
+		   return null;
+	   }
+	   IAVLNode position = fingerPosition(k);
+	   this.finger = position;
+	   return (position.getKey() == k) ? position.getValue() : null;
+   }
+   
+   /**
+    * public int fingerInsert(int k, String i)
+    *
+    * insert(k, i) starting the search for the position from the finger, which then moves to the new node.
+    * the size and height updates still walk up to the root, only the descent is shortened.
+    * returns as insert(k, i).
+    * complexity: O(log d) comparisons for the d keys between k and the finger, O(logn) updates.
+    */
+   public int fingerInsert(int k, String i) {
+	   long start = (metrics == null) ? 0 : System.nanoTime();
+	   int rebalancing = empty() ? insertItem(k, i, 0) : insertAt(fingerPosition(k), k, i, 0);
+	   if (metrics != null) {
+		   metrics.record(Operation.INSERT, start, rebalancing);
+	   }
+	   if ((changeLog != null) && (rebalancing >= 0)) {
+		   changeLog.publish(Operation.INSERT, k, i, 0);
+	   }
+	   return rebalancing;
+   }
+   
    /**
-    * private void treeInsert(IAVLNode root, int key, String value)
+    * private void treeInsert(IAVLNode position, int key, String value, long weight)
     *
-	* inserts an item with key k and info i to AVL tree with root 'root'.
-	* root is not null.
+	* inserts an item with key k and info i below 'position', the node treePosition returned for k.
+	* position is not null.
 	* the tree does not remain a valid AVL tree.
 	* returns null if an item with key 'k' already exists in the tree. 
 	* otherwise, returns the node that was inserted.
-	* complexity: O(logn).
+	* complexity: O(1).
     */
-   private IAVLNode treeInsert(IAVLNode root, int k, String i) {
-	   IAVLNode position = treePosition(root, k); // finds the position of insertion
-	   AVLNode nodeToInsert = new AVLNode(k, i, position); // create a new node with key k, value i and parent position
+   private IAVLNode treeInsert(IAVLNode position, int k, String i, long weight) {
 	   if (k == position.getKey()) { // the key is already in the tree
 		   return null;
 	   }
+	   AVLNode nodeToInsert = newNode(k, i, weight, position); // create a new node with key k, value i and parent position
+	   beginWrite();
 	   if (k < position.getKey()) {
 		   position.setLeft(nodeToInsert); // insertion as a left child
 	   }
 	   if (k > position.getKey()) {
 		   position.setRight(nodeToInsert); // insertion as a right child
 	   }
+	   endWrite();
 	   return nodeToInsert;
    }
 
@@ -487,6 +1255,24 @@ public class AVLTree {
    * complexity: O(logn).
    */
    public int delete(int k) {
+	   long start = (metrics == null) ? 0 : System.nanoTime();
+	   int rebalancing = deleteItem(k);
+	   if (metrics != null) {
+		   metrics.record(Operation.DELETE, start, rebalancing);
+	   }
+	   if ((changeLog != null) && (rebalancing >= 0)) {
+		   changeLog.publish(Operation.DELETE, k, null, 0);
+	   }
+	   return rebalancing;
+   }
+   
+   /**
+    * private int deleteItem(int k)
+    *
+    * the uninstrumented delete(k)
+    * complexity: O(logn).
+    */
+   private int deleteItem(int k) {
 	   if (empty()) { // tree is empty, the key is not in the tree
 		   return -1;
 	   }
@@ -494,68 +1280,161 @@ public class AVLTree {
 	   if (k != nodeToDelete.getKey()) { // the key is not in the tree
 		   return -1; 
 	   }
-	   
-	   int rebalancing = 0;
-	   IAVLNode deletedNodeParent = treeDelete(nodeToDelete); // delete the node and return it's parent, do not rebalance the tree
-	   if (deletedNodeParent != null) {
-		   rebalancing = deleteRebalancing(deletedNodeParent); // rebalance the tree and return the number of rebalancing operations
-		 	  
-		   while (deletedNodeParent != null) { // update size and height from the deleted node's parent up to the root
-					update(deletedNodeParent);
-					deletedNodeParent = deletedNodeParent.getParent(); // move towards the root 
-		 	  }
-	   }
-	   else { // deletedNodeParent = null -> the root was deleted
-		   if (empty()) {
-			   return 0;
-		   }
+	   int rebalancing = removeNode(nodeToDelete);
+	   if (empty()) {
+		   this.setMin(null);
+		   this.setMax(null);
 	   }
+	   else {
 	 	  if (k == this.getMin().getKey()) { // update min 
 	 		  this.setMin(treeMin(root)); 
 	 	  }
 	 	  if (k == this.getMax().getKey() ) { // update max
 	 		  this.setMax(treeMax(root));;
 	 	  } 
+	   }
+	   recycle(nodeToDelete); // only now, min and max were compared with its key
 	   return rebalancing;
    }
    
-  
    /**
-    * public IAVLNode treeMin(IAVLNode node)
-    * 
-    * return the node with the smallest key at subtree with root 'node'
+    * private int removeNode(IAVLNode nodeToDelete)
+    *
+    * unlinks the node, rebalances and updates the path to the root, min and max are left to the caller
+    * returns the number of rebalancing operations
     * complexity: O(logn).
     */
-   
-   public IAVLNode treeMin(IAVLNode node) {
-	   IAVLNode current = node;
-	   while (current.getLeft().isRealNode()) {
-		   current = current.getLeft();
+   private int removeNode(IAVLNode nodeToDelete) {
+	   if (cache != null) {
+		   cache.remove(nodeToDelete.getKey());
 	   }
-	   return current;
+	   int rebalancing = 0;
+	   beginWrite();
+	   IAVLNode deletedNodeParent = treeDelete(nodeToDelete); // delete the node and return it's parent, do not rebalance the tree
+	   endWrite();
+	   if (finger == nodeToDelete) { // keep the finger in the tree, near its old key
+		   finger = deletedNodeParent;
+	   }
+	   if (deletedNodeParent != null) {
+		   // rebalance the tree and return the number of rebalancing operations
+		   rebalancing = weak ? weakDeleteRebalancing(deletedNodeParent) : deleteRebalancing(deletedNodeParent);
+		 	  
+		   while (deletedNodeParent != null) { // update size and height from the deleted node's parent up to the root
+					update(deletedNodeParent);
+					deletedNodeParent = deletedNodeParent.getParent(); // move towards the root 
+		 	  }
+	   }
+	   return rebalancing;
    }
    
    /**
-    * public IAVLNode treeMax(IAVLNode node)
-    * 
-    * return the node with the biggest key at subtree with root 'node'
-    * complexity: O(logn).
+    * public IAVLNode pollFirst()
+    *
+    * deletes the item with the minimum key and returns its node, detached from the tree,
+    * or null if the tree is empty. getMin() peeks at it.
+    * the cached minimum has no left child, so it is unlinked without a search and without the
+    * successor swap of delete, and its successor (its right child, a leaf, or its parent) is the new minimum.
+    * complexity: O(1) amortized rebalancing, O(logn) size and height updates.
     */
-   public IAVLNode treeMax(IAVLNode node) {
-	   while (node.getRight().isRealNode()) {
-		   node = node.getRight();
-	   }
-	   return node;
+   public IAVLNode pollFirst() {
+	   return poll(true);
    }
+   
    /**
-    * private IAVLNode treeDelete(IAVLNode nodeToDelete, int k)
-    * 
-    * delete a node and return it's parent 
-    * complexity: O(logn).
+    * public IAVLNode pollLast()
+    *
+    * deletes the item with the maximum key and returns its node, as pollFirst(). getMax() peeks at it.
+    * complexity: O(1) amortized rebalancing, O(logn) size and height updates.
     */
-   private IAVLNode treeDelete(IAVLNode nodeToDelete) { //the deleting part of delete, nodeToDelte is not null
-	   	   
-	   if (((AVLNode)nodeToDelete).isBinary()) { 
+   public IAVLNode pollLast() {
+	   return poll(false);
+   }
+   
+   /**
+    * private IAVLNode poll(boolean first)
+    *
+    * pollFirst() if first is true, otherwise pollLast(), recorded and published as delete
+    * complexity: O(logn).
+    */
+   private IAVLNode poll(boolean first) {
+	   if (empty()) {
+		   return null;
+	   }
+	   long start = (metrics == null) ? 0 : System.nanoTime();
+	   IAVLNode node = first ? getMin() : getMax();
+	   IAVLNode next = first ? successor(node) : predecessor(node); // found before node is unlinked
+	   int rebalancing = removeNode(node);
+	   if (empty()) {
+		   this.setMin(null);
+		   this.setMax(null);
+	   }
+	   else if (first) {
+		   this.setMin(next);
+	   }
+	   else {
+		   this.setMax(next);
+	   }
+	   if (metrics != null) {
+		   metrics.record(Operation.DELETE, start, rebalancing);
+	   }
+	   if (changeLog != null) {
+		   changeLog.publish(Operation.DELETE, node.getKey(), null, 0);
+	   }
+	   return node;
+   }
+   
+   /**
+    * public AVLTree pollFirstN(int n)
+    *
+    * deletes the items with the n smallest keys (all of them if n >= size()) and returns them as a tree,
+    * split off at the n'th key as by extractRange.
+    * complexity: O(logn), plus O(n) when the keys are published, plus O(min(n, h)) as by extractRange.
+    */
+   public AVLTree pollFirstN(int n) {
+	   if (empty() || (n <= 0)) {
+		   return extractRange(1, 0);
+	   }
+	   IAVLNode last = (n >= size()) ? getMax() : select(n - 1);
+	   return extractRange(getMin().getKey(), last.getKey());
+   }
+   
+  
+   /**
+    * public IAVLNode treeMin(IAVLNode node)
+    * 
+    * return the node with the smallest key at subtree with root 'node'
+    * complexity: O(logn).
+    */
+   
+   public IAVLNode treeMin(IAVLNode node) {
+	   IAVLNode current = node;
+	   while (current.getLeft().isRealNode()) {
+		   current = current.getLeft();
+	   }
+	   return current;
+   }
+   
+   /**
+    * public IAVLNode treeMax(IAVLNode node)
+    * 
+    * return the node with the biggest key at subtree with root 'node'
+    * complexity: O(logn).
+    */
+   public IAVLNode treeMax(IAVLNode node) {
+	   while (node.getRight().isRealNode()) {
+		   node = node.getRight();
+	   }
+	   return node;
+   }
+   /**
+    * private IAVLNode treeDelete(IAVLNode nodeToDelete, int k)
+    * 
+    * delete a node and return it's parent 
+    * complexity: O(logn).
+    */
+   private IAVLNode treeDelete(IAVLNode nodeToDelete) { //the deleting part of delete, nodeToDelte is not null
+	   	   
+	   if (((AVLNode)nodeToDelete).isBinary()) { 
 		   IAVLNode successor = successor(nodeToDelete); // find the successor of the node
 		   replace(nodeToDelete, successor); // replace the node and his successor
 		// after the replacement the node we need to delete is a leaf or an unary node		   
@@ -594,6 +1473,25 @@ public class AVLTree {
 	   }
 	   return parent;
    }
+   /**
+    * private IAVLNode predecessor(IAVLNode node)
+    * 
+    * finds the predecessor of a node, or null if it is the minimum:
+    * if the node have a left child - the predecessor is the maximum of the left subtree
+    * else, go up the tree until the first turn left
+    * complexity: O(logn).
+    */
+   private IAVLNode predecessor(IAVLNode node) {
+	   if (node.getLeft().isRealNode()) { // node has a left child
+		   return treeMax(node.getLeft());
+	   }
+	   IAVLNode parent = node.getParent(); // node has no left child
+	   while ((parent != null) && (node == parent.getLeft())) {
+		  node = parent;
+		  parent = node.getParent();
+	   }
+	   return parent;
+   }
 /**
  * private void replace(IAVLNode nodeToDelete, IAVLNode successor)
  *  
@@ -616,7 +1514,7 @@ public class AVLTree {
     	   this.setRoot(successor); // make the successor the root of the tree
     	   successor.setParent(null);
        }
-	   if (nodeToDelete.getRight().getKey() == successor.getKey()) { // the successor is the node's right child
+	   if (nodeToDelete.getRight() == successor) { // the successor is the node's right child
 		   successor.setParent(nodeToDelete.getParent());
 		   nodeToDelete.setParent(successor);
 		   successor.setRight(nodeToDelete);
@@ -661,8 +1559,9 @@ public class AVLTree {
 		   root = null;
 		   return null;
 	   } 
-	   IAVLNode vitrualNode = ((AVLNode)node.getParent()).createVirtualNode((AVLNode)node.getParent()); // create a virtual node
 	   IAVLNode parent = node.getParent();
+	   IAVLNode vitrualNode = node.getLeft(); // the leaf's own virtual child takes its place
+	   vitrualNode.setParent(parent);
 	   if (((AVLNode) node).isLeftChild()) { // check if the node is a left child
 		   node.getParent().setLeft(vitrualNode); // delete the left child
 	   }
@@ -741,6 +1640,7 @@ public class AVLTree {
 				   return rebalancing; // the tree is balanced, no need for more checks
 				   
 			   } else { if ((rankDifferenceLeft(deletedNodeParent.getRight()) == 1) && (rankDifferenceRight(deletedNodeParent.getRight()) == 2)) { // 1,2 -> RL rotation
+					   countDoubleRotation();
 					   rebalancing += singleRightRotation(deletedNodeParent.getRight(), 2);
 					   rebalancing += singleLeftRotation(deletedNodeParent, 1);
 					   deletedNodeParent = deletedNodeParent.getParent().getParent();
@@ -767,6 +1667,7 @@ public class AVLTree {
 					   	} 
 				   else {
 					   if ((rankDifferenceLeft(deletedNodeParent.getLeft()) == 2) && (rankDifferenceRight(deletedNodeParent.getLeft()) == 1)) { // 2,1 -> LR rotation
+					   		countDoubleRotation();
 					   		rebalancing += singleLeftRotation(deletedNodeParent.getLeft(), 2);
 					   		rebalancing += singleRightRotation(deletedNodeParent, 1);
 					   		deletedNodeParent = deletedNodeParent.getParent().getParent();
@@ -783,6 +1684,71 @@ public class AVLTree {
    }
    
    
+   /**
+    * private int weakDeleteRebalancing(IAVLNode deletedNodeParent)
+    * 
+    * rebalance a weak AVL tree after the deletion on 'deletedNodeParent' child:
+    * a parent left as a 2,2 leaf is demoted, then while a node has a 3 child:
+    * 3,2 - demote it and move up; 3,1 with a 2,2 sibling - demote both and move up;
+    * otherwise one single or double rotation ends the rebalancing.
+    * return the number of rebalancing (promote, demote and rotations)
+    * complexity: O(logn), O(1) amortized.
+    */
+   private int weakDeleteRebalancing(IAVLNode deletedNodeParent) {
+	   int rebalancing = 0;
+	   IAVLNode node = deletedNodeParent;
+	   if (((AVLNode)node).isLeaf() && (((AVLNode)node).getRank() == 1)) { // 2,2 leaf
+		   demote(node);
+		   rebalancing++;
+		   node = node.getParent();
+	   }
+	   while (node != null) {
+		   int left = rankDifferenceLeft(node);
+		   int right = rankDifferenceRight(node);
+		   if ((left != 3) && (right != 3)) { // the tree is balanced
+			   return rebalancing;
+		   }
+		   boolean leftIsShort = (left == 3);
+		   IAVLNode sibling = leftIsShort ? node.getRight() : node.getLeft();
+		   if ((leftIsShort ? right : left) == 2) { // 3,2 -> demote
+			   demote(node);
+			   rebalancing++;
+			   node = node.getParent();
+			   continue;
+		   }
+		   if ((rankDifferenceLeft(sibling) == 2) && (rankDifferenceRight(sibling) == 2)) { // 3,1 with a 2,2 sibling -> demote both
+			   demote(node);
+			   demote(sibling);
+			   rebalancing += 2;
+			   node = node.getParent();
+			   continue;
+		   }
+		   int outerDifference = leftIsShort ? rankDifferenceRight(sibling) : rankDifferenceLeft(sibling);
+		   if (outerDifference == 1) { // single rotation, the sibling is promoted and node demoted
+			   rebalancing += leftIsShort ? singleLeftRotation(node, 2) : singleRightRotation(node, 2);
+			   if (((AVLNode)node).isLeaf()) { // node became a 2,2 leaf
+				   demote(node);
+				   rebalancing++;
+			   }
+		   }
+		   else { // double rotation, the sibling's inner child is promoted twice, the sibling demoted and node demoted twice
+			   countDoubleRotation();
+			   if (leftIsShort) {
+				   rebalancing += singleRightRotation(sibling, 2);
+				   rebalancing += singleLeftRotation(node, 2);
+			   }
+			   else {
+				   rebalancing += singleLeftRotation(sibling, 2);
+				   rebalancing += singleRightRotation(node, 2);
+			   }
+			   demote(node);
+			   rebalancing++;
+		   }
+		   return rebalancing;
+	   }
+	   return rebalancing;
+   }
+   
    /**
     * public String min()
     *
@@ -811,6 +1777,307 @@ public class AVLTree {
 	   }
 	   return this.getMax().getValue() ;
    }
+   
+   /**
+    * public long aggregate()
+    *
+    * Returns the tree's aggregate over all its items, or the aggregator's identity if the tree is empty
+    * precondition: the tree was constructed with an aggregator
+    * complexity: O(1).
+    */
+   public long aggregate() {
+	   requireAggregator();
+	   if (empty()) {
+		   return aggregator.identity();
+	   }
+	   return ((AVLNode)getRoot()).getAggregate();
+   }
+   
+   /**
+    * public long aggregate(int lo, int hi)
+    *
+    * Returns the tree's aggregate over the items with lo <= key <= hi, combined in key order,
+    * or the aggregator's identity if there are none.
+    * only the two boundary paths are walked, the subtrees between them contribute their stored aggregate.
+    * precondition: the tree was constructed with an aggregator
+    * complexity: O(logn).
+    */
+   public long aggregate(int lo, int hi) {
+	   requireAggregator();
+	   long result = aggregator.identity();
+	   if (empty() || (lo > hi)) {
+		   return result;
+	   }
+	   IAVLNode node = getRoot();
+	   while (node.isRealNode() && ((node.getKey() < lo) || (node.getKey() > hi))) { // find the top node in range
+		   node = (node.getKey() < lo) ? node.getRight() : node.getLeft();
+	   }
+	   if (!node.isRealNode()) {
+		   return result;
+	   }
+	   long leftPart = aggregator.identity(); // keys >= lo in node's left subtree
+	   IAVLNode current = node.getLeft();
+	   while (current.isRealNode()) {
+		   if (current.getKey() >= lo) { // current and its right subtree are in range, and precede what was found so far
+			   long part = aggregator.combine(aggregator.lift(current.getKey(), ((AVLNode)current).getWeight()), ((AVLNode)current.getRight()).getAggregate());
+			   leftPart = aggregator.combine(part, leftPart);
+			   current = current.getLeft();
+		   }
+		   else {
+			   current = current.getRight();
+		   }
+	   }
+	   long rightPart = aggregator.identity(); // keys <= hi in node's right subtree
+	   current = node.getRight();
+	   while (current.isRealNode()) {
+		   if (current.getKey() <= hi) { // current and its left subtree are in range, and follow what was found so far
+			   long part = aggregator.combine(((AVLNode)current.getLeft()).getAggregate(), aggregator.lift(current.getKey(), ((AVLNode)current).getWeight()));
+			   rightPart = aggregator.combine(rightPart, part);
+			   current = current.getRight();
+		   }
+		   else {
+			   current = current.getLeft();
+		   }
+	   }
+	   result = aggregator.combine(leftPart, aggregator.lift(node.getKey(), ((AVLNode)node).getWeight()));
+	   return aggregator.combine(result, rightPart);
+   }
+   
+   /**
+    * public void setHashed(boolean hashed)
+    *
+    * starts (or stops) keeping in every node a hash of its subtree's items: the sum of one 64-bit
+    * hash per item (of its key and info), so equal contents have equal hashes whatever the shapes
+    * of the trees, and the hash of any key range costs O(logn).
+    * the hashes are not cryptographic, infos enter them through String.hashCode.
+    * trees joined together must both be hashed, split passes the setting to both halves.
+    * complexity: O(n) to start, O(1) to stop.
+    */
+   public void setHashed(boolean hashed) {
+	   this.hashed = hashed;
+	   if (hashed && !empty()) {
+		   rehash(getRoot());
+	   }
+   }
+   
+   private void rehash(IAVLNode node) {
+	   if (node.isRealNode()) {
+		   rehash(node.getLeft());
+		   rehash(node.getRight());
+		   update(node);
+	   }
+   }
+   
+   public boolean isHashed() {
+	   return this.hashed;
+   }
+   
+   /**
+    * public long contentHash()
+    *
+    * Returns the hash of all the tree's items, 0 for an empty tree. replicas holding the same items have the same hash.
+    * precondition: the tree is hashed
+    * complexity: O(1).
+    */
+   public long contentHash() {
+	   requireHashed();
+	   return empty() ? 0 : ((AVLNode)getRoot()).getHash();
+   }
+   
+   /**
+    * public int[] diff(AVLTree other)
+    *
+    * Returns the sorted keys whose items differ between the tree and 'other':
+    * keys in only one of them, and keys with different infos.
+    * walks the tree from the root and skips every subtree whose hash equals the hash of the same
+    * key range in other. while the two trees have the same shape, other's hash is read from the node
+    * at the same position, otherwise it is computed in O(logn).
+    * precondition: both trees are hashed
+    * complexity: O(d logn) for d differences between trees of the same shape, O(d log^2 n) otherwise.
+    */
+   public int[] diff(AVLTree other) {
+	   requireHashed();
+	   other.requireHashed();
+	   List<Integer> keysArray = new ArrayList<>();
+	   diffNodes(this.getRoot(), other.getRoot(), Long.MIN_VALUE, Long.MAX_VALUE, other, keysArray);
+	   int[] result = new int[keysArray.size()];
+	   for (int i = 0; i < result.length; i++) {
+		   result[i] = keysArray.get(i);
+	   }
+	   return result;
+   }
+   
+   /**
+    * private void diffNodes(IAVLNode node, IAVLNode twin, long low, long high, AVLTree other, List<Integer> keysArray)
+    *
+    * adds the differing keys in (low, high) to keysArray, in order.
+    * node holds the tree's items in (low, high) (null or virtual if none), twin holds other's items
+    * in (low, high), or is null if other has no such subtree.
+    * complexity: O(logn) per difference and per node visited.
+    */
+   private void diffNodes(IAVLNode node, IAVLNode twin, long low, long high, AVLTree other, List<Integer> keysArray) {
+	   long hash = ((node == null) || !node.isRealNode()) ? 0 : ((AVLNode)node).getHash();
+	   long otherHash = (twin != null) ? ((AVLNode)twin).getHash() : other.hashBelow(high) - other.hashBelow(low + 1);
+	   if (hash == otherHash) {
+		   return;
+	   }
+	   if ((node == null) || !node.isRealNode()) { // every key other has in the range differs
+		   if (low + 1 <= high - 1) {
+			   for (int key : other.keysToArray((int) Math.max(low + 1, Integer.MIN_VALUE), (int) Math.min(high - 1, Integer.MAX_VALUE))) {
+				   keysArray.add(key);
+			   }
+		   }
+		   return;
+	   }
+	   int key = node.getKey();
+	   boolean sameShape = (twin != null) && twin.isRealNode() && (twin.getKey() == key);
+	   diffNodes(node.getLeft(), sameShape ? twin.getLeft() : null, low, key, other, keysArray);
+	   IAVLNode otherNode = sameShape ? twin : (other.empty() ? null : other.recSearchNode(key, other.getRoot()));
+	   if ((otherNode == null) || !Objects.equals(otherNode.getValue(), node.getValue())) {
+		   keysArray.add(key);
+	   }
+	   diffNodes(node.getRight(), sameShape ? twin.getRight() : null, key, high, other, keysArray);
+   }
+   
+   /**
+    * private long hashBelow(long bound)
+    *
+    * returns the sum of the item hashes of the keys smaller than bound
+    * complexity: O(logn).
+    */
+   private long hashBelow(long bound) {
+	   long hash = 0;
+	   IAVLNode node = getRoot();
+	   while ((node != null) && node.isRealNode()) {
+		   if (node.getKey() < bound) {
+			   hash += ((AVLNode)node.getLeft()).getHash() + itemHash(node.getKey(), node.getValue());
+			   node = node.getRight();
+		   }
+		   else {
+			   node = node.getLeft();
+		   }
+	   }
+	   return hash;
+   }
+   
+   /**
+    * private static long itemHash(int key, String value)
+    *
+    * a well mixed 64-bit hash of an item (the finalizer of MurmurHash3)
+    * complexity: O(1), String.hashCode is cached by the string.
+    */
+   private static long itemHash(int key, String value) {
+	   long h = ((long) key << 32) ^ ((value == null) ? 0x5BD1E995L : (value.hashCode() & 0xFFFFFFFFL)) ^ 0x9E3779B97F4A7C15L;
+	   h ^= h >>> 33;
+	   h *= 0xFF51AFD7ED558CCDL;
+	   h ^= h >>> 33;
+	   h *= 0xC4CEB9FE1A85EC53L;
+	   h ^= h >>> 33;
+	   return h;
+   }
+   
+   private void requireHashed() {
+	   if (!hashed) {
+		   throw new IllegalStateException("the tree is not hashed");
+	   }
+   }
+   
+   /**
+    * public boolean setWeight(int k, long weight)
+    *
+    * sets the numeric value of the item with key k and updates the aggregates above it
+    * returns false if an item with key k was not found in the tree
+    * complexity: O(logn).
+    */
+   public boolean setWeight(int k, long weight) {
+	   if (empty()) {
+		   return false;
+	   }
+	   IAVLNode node = treePosition(getRoot(), k);
+	   if (node.getKey() != k) {
+		   return false;
+	   }
+	   ((AVLNode)node).setWeight(weight);
+	   while (node != null) {
+		   update(node);
+		   node = node.getParent();
+	   }
+	   return true;
+   }
+   
+   /**
+    * public void bulkLoad(int[] keys, String[] infos, long[] weights)
+    *
+    * replaces the contents of the tree with the given items, keys must be strictly increasing.
+    * weights may be null (all 0).
+    * the tree is built perfectly balanced without any rebalancing.
+    * complexity: O(n).
+    */
+   public void bulkLoad(int[] keys, String[] infos, long[] weights) {
+	   if ((keys.length != infos.length) || ((weights != null) && (weights.length != keys.length))) {
+		   throw new IllegalArgumentException("keys, infos and weights must have the same length");
+	   }
+	   for (int i = 1; i < keys.length; i++) {
+		   if (keys[i - 1] >= keys[i]) {
+			   throw new IllegalArgumentException("keys must be strictly increasing, " + keys[i - 1] + " >= " + keys[i]);
+		   }
+	   }
+	   IAVLNode root = null;
+	   if (keys.length > 0) {
+		   root = buildBalanced(keys, infos, weights, 0, keys.length - 1);
+		   root.setParent(null);
+	   }
+	   beginWrite();
+	   this.setRoot(root);
+	   endWrite();
+	   if (cache != null) {
+		   cache.clear();
+	   }
+	   this.finger = null;
+	   this.expiries = null;
+	   this.setMin((root == null) ? null : treeMin(root));
+	   this.setMax((root == null) ? null : treeMax(root));
+   }
+   
+   /**
+    * private IAVLNode buildBalanced(int[] keys, String[] infos, long[] weights, int from, int to)
+    *
+    * builds a perfectly balanced subtree of the items from..to (from <= to), rooted at the middle item
+    * complexity: O(to - from).
+    */
+   private IAVLNode buildBalanced(int[] keys, String[] infos, long[] weights, int from, int to) {
+	   int middle = (from + to) >>> 1;
+	   IAVLNode node = createNode(keys[middle], infos[middle], (weights == null) ? 0 : weights[middle], null);
+	   if (from < middle) { // replace the virtual left child
+		   node.setLeft(buildBalanced(keys, infos, weights, from, middle - 1));
+		   node.getLeft().setParent(node);
+	   }
+	   if (middle < to) {
+		   node.setRight(buildBalanced(keys, infos, weights, middle + 1, to));
+		   node.getRight().setParent(node);
+	   }
+	   update(node);
+	   ((AVLNode)node).setRank(node.getHeight()); // both subtrees are legal AVL of heights differing by at most 1
+	   return node;
+   }
+   
+   /**
+    * private long aggregate(IAVLNode node)
+    *
+    * computes the aggregate of the real node 'node' from its children's aggregates
+    * complexity: O(1).
+    */
+   private long aggregate(IAVLNode node) {
+	   long own = aggregator.lift(node.getKey(), ((AVLNode)node).getWeight());
+	   long left = aggregator.combine(((AVLNode)node.getLeft()).getAggregate(), own);
+	   return aggregator.combine(left, ((AVLNode)node.getRight()).getAggregate());
+   }
+   
+   private void requireAggregator() {
+	   if (aggregator == null) {
+		   throw new IllegalStateException("the tree was constructed without an aggregator");
+	   }
+   }
 
   /**
    * public int[] keysToArray()
@@ -877,54 +2144,357 @@ public class AVLTree {
 	  return infoArray;
   }
   
-
-
-   /**
-    * public int size()
-    *
-    * Returns the number of nodes in the tree.
-    *
-    * precondition: none
-    * postcondition: none
-    * complexity: O(1).
-    */
-   public int size()
-   {
-	   if (empty()) {
-		   return 0;
-	   }
-	   return ((AVLNode)getRoot()).getSize(); // the size of the tree is the size of the root
-   }
-   
-     /**
-    * public int getRoot()
-    *
-    * Returns the root AVL node, or null if the tree is empty
-    *
-    * precondition: none
-    * postcondition: none
-    * complexity: O(1).
-    */
-   public IAVLNode getRoot()
-   {
-	   return this.root;
-   }
-   /**
-    * private String recSearchNode(int k, IAVLNode node)
-    *
-    * returns the node with key k 
-    	* precondition:  search(x) != null
-	* complexity: O(logn).
-    */  
-   private IAVLNode recSearchNode(int k, IAVLNode node) {
- 	  while (node.isRealNode()) {
- 		  if (node.getKey() == k) {
- 			  return node;
- 		  }
- 		  else {
- 		  if (node.getKey() < k) {
- 			  return recSearchNode(k, node.getRight());
- 		  }
+  /**
+   * public int[] keysToArray(int lo, int hi)
+   *
+   * Returns a sorted array of the keys k in the tree with lo <= k <= hi,
+   * the subtrees outside the range are not visited.
+   * complexity: O(logn + k) for k keys in the range.
+   */
+  public int[] keysToArray(int lo, int hi)
+  {
+	  if (empty() || (lo > hi)) {
+		  return new int[0];
+	  }
+	  int[] result = new int[countLess((long) hi + 1) - countLess(lo)];
+	  recRangeToArray(getRoot(), lo, hi, result, 0);
+	  return result;
+  }
+  private int recRangeToArray(IAVLNode node, int lo, int hi, int[] keysArray, int index) {
+	  while (node.isRealNode()) {
+		  if (node.getKey() < lo) { // node and its left subtree are before the range
+			  node = node.getRight();
+		  }
+		  else if (node.getKey() > hi) { // node and its right subtree are after the range
+			  node = node.getLeft();
+		  }
+		  else {
+			  index = recRangeToArray(node.getLeft(), lo, hi, keysArray, index);
+			  keysArray[index++] = node.getKey();
+			  node = node.getRight();
+		  }
+	  }
+	  return index;
+  }
+  
+  /**
+   * public int[] fingerKeysToArray(int lo, int hi)
+   *
+   * keysToArray(lo, hi) starting from the finger: finds lo as fingerSearch does, then walks successors
+   * up to hi. the finger moves to the last key returned (or to where lo would be, if none).
+   * complexity: O(log d + k) for k keys in the range and d keys between lo and the finger.
+   */
+  public int[] fingerKeysToArray(int lo, int hi)
+  {
+	  if (empty() || (lo > hi)) {
+		  return new int[0];
+	  }
+	  IAVLNode node = fingerPosition(lo); // lo, or its predecessor or successor
+	  this.finger = node;
+	  if (node.getKey() < lo) {
+		  node = successor(node);
+	  }
+	  int[] keysArray = new int[16];
+	  int index = 0;
+	  while ((node != null) && (node.getKey() <= hi)) {
+		  if (index == keysArray.length) {
+			  keysArray = Arrays.copyOf(keysArray, index * 2);
+		  }
+		  keysArray[index++] = node.getKey();
+		  this.finger = node;
+		  node = successor(node);
+	  }
+	  return Arrays.copyOf(keysArray, index);
+  }
+  
+  /**
+   * private int countLess(long key)
+   *
+   * returns the number of keys in the tree smaller than key, using the subtree sizes
+   * complexity: O(logn).
+   */
+  private int countLess(long key) {
+	  int count = 0;
+	  IAVLNode node = getRoot();
+	  while ((node != null) && node.isRealNode()) {
+		  if (node.getKey() < key) {
+			  count += node.getLeft().getSize() + 1;
+			  node = node.getRight();
+		  }
+		  else {
+			  node = node.getLeft();
+		  }
+	  }
+	  return count;
+  }
+  
+  /**
+   * public FrozenAVLTree freeze()
+   *
+   * Returns an immutable copy of the tree's items in one contiguous Eytzinger array.
+   * the tree itself is not changed and stays usable.
+   * complexity: O(n).
+   */
+  public FrozenAVLTree freeze()
+  {
+	  int[] keys = new int[size()];
+	  String[] infos = new String[keys.length];
+	  IAVLNode node = this.getMin();
+	  for (int i = 0; i < keys.length; i++) { // in order, O(1) amortized per successor
+		  keys[i] = node.getKey();
+		  infos[i] = node.getValue();
+		  node = successor(node);
+	  }
+	  return new FrozenAVLTree(keys, infos);
+  }
+  
+  /**
+   * public IAVLNode select(int i)
+   *
+   * Returns the node with the i'th smallest key (i = 0 is the minimum),
+   * or null if i is not in 0..size()-1
+   * complexity: O(logn).
+   */
+  public IAVLNode select(int i)
+  {
+	  if ((i < 0) || (i >= size())) {
+		  return null;
+	  }
+	  IAVLNode node = getRoot();
+	  while (true) {
+		  int leftSize = node.getLeft().getSize();
+		  if (i == leftSize) {
+			  return node;
+		  }
+		  if (i < leftSize) {
+			  node = node.getLeft();
+		  }
+		  else {
+			  i -= leftSize + 1;
+			  node = node.getRight();
+		  }
+	  }
+  }
+  
+
+
+   /**
+    * public int size()
+    *
+    * Returns the number of nodes in the tree.
+    *
+    * precondition: none
+    * postcondition: none
+    * complexity: O(1).
+    */
+   public int size()
+   {
+	   if (empty()) {
+		   return 0;
+	   }
+	   return ((AVLNode)getRoot()).getSize(); // the size of the tree is the size of the root
+   }
+   
+     /**
+    * public int getRoot()
+    *
+    * Returns the root AVL node, or null if the tree is empty
+    *
+    * precondition: none
+    * postcondition: none
+    * complexity: O(1).
+    */
+   public IAVLNode getRoot()
+   {
+	   return this.root;
+   }
+   
+   /**
+    * public void verify()
+    *
+    * checks in one pass that the tree keeps all its invariants:
+    * keys in BST order, the AVL rank rule (1,1 / 1,2 / 2,1 nodes, or the WAVL rule in a weak tree),
+    * size, height, aggregate and hash
+    * of every node, parent pointers, and the min and max nodes.
+    * throws IllegalStateException describing the first violation found.
+    * complexity: O(n).
+    */
+   public void verify()
+   {
+	   if (empty()) {
+		   if ((getMin() != null) || (getMax() != null)) {
+			   throw new IllegalStateException("empty tree with a min or max node");
+		   }
+		   return;
+	   }
+	   if (getRoot().getParent() != null) {
+		   throw new IllegalStateException("root " + getRoot().getKey() + " has a parent");
+	   }
+	   verifyNode(getRoot(), Long.MIN_VALUE, Long.MAX_VALUE);
+	   if (getMin() != treeMin(getRoot())) {
+		   throw new IllegalStateException("min is " + ((getMin() == null) ? "null" : getMin().getKey()) + " instead of " + treeMin(getRoot()).getKey());
+	   }
+	   if (getMax() != treeMax(getRoot())) {
+		   throw new IllegalStateException("max is " + ((getMax() == null) ? "null" : getMax().getKey()) + " instead of " + treeMax(getRoot()).getKey());
+	   }
+   }
+   
+   /**
+    * private void verifyNode(IAVLNode node, long low, long high)
+    *
+    * checks the invariants of the subtree of the real node 'node', whose keys must be in (low, high)
+    * complexity: O(size of the subtree).
+    */
+   private void verifyNode(IAVLNode node, long low, long high)
+   {
+	   int key = node.getKey();
+	   if ((key <= low) || (key >= high)) {
+		   throw new IllegalStateException("key " + key + " is out of order, expected in (" + low + ", " + high + ")");
+	   }
+	   IAVLNode left = node.getLeft();
+	   IAVLNode right = node.getRight();
+	   if ((left == null) || (right == null)) {
+		   throw new IllegalStateException("node " + key + " has a null child");
+	   }
+	   if (left.isRealNode()) {
+		   if (left.getParent() != node) {
+			   throw new IllegalStateException("left child " + left.getKey() + " of " + key + " has a wrong parent");
+		   }
+		   verifyNode(left, low, key);
+	   }
+	   if (right.isRealNode()) {
+		   if (right.getParent() != node) {
+			   throw new IllegalStateException("right child " + right.getKey() + " of " + key + " has a wrong parent");
+		   }
+		   verifyNode(right, key, high);
+	   }
+	   int leftDifference = node.getRank() - left.getRank();
+	   int rightDifference = node.getRank() - right.getRank();
+	   if (!(((leftDifference == 1) && (rightDifference == 1)) || ((leftDifference == 1) && (rightDifference == 2)) || ((leftDifference == 2) && (rightDifference == 1))
+			   || (weak && (leftDifference == 2) && (rightDifference == 2) && (left.isRealNode() || right.isRealNode())))) {
+		   throw new IllegalStateException("node " + key + " is " + leftDifference + "," + rightDifference);
+	   }
+	   if (node.getSize() != left.getSize() + right.getSize() + 1) {
+		   throw new IllegalStateException("node " + key + " has size " + node.getSize());
+	   }
+	   if (node.getHeight() != Math.max(left.getHeight(), right.getHeight()) + 1) {
+		   throw new IllegalStateException("node " + key + " has height " + node.getHeight());
+	   }
+	   if ((aggregator != null) && (((AVLNode)node).getAggregate() != aggregate(node))) {
+		   throw new IllegalStateException("node " + key + " has aggregate " + ((AVLNode)node).getAggregate());
+	   }
+	   if (hashed && (((AVLNode)node).getHash() != ((AVLNode)left).getHash() + itemHash(key, node.getValue()) + ((AVLNode)right).getHash())) {
+		   throw new IllegalStateException("node " + key + " has hash " + ((AVLNode)node).getHash());
+	   }
+   }
+   
+   /**
+    * public TreeStats stats()
+    *
+    * Returns the exact shape of the tree: height, node count, search depths,
+    * rank difference distribution and estimated memory footprint.
+    * the subtrees are walked in parallel on the common fork-join pool.
+    * the walk is bounded in depth and node count and checks for null, so it can run from a monitoring
+    * thread while the tree is in use. in concurrent reads mode a walk that overlapped a structural change
+    * is repeated, up to STATS_ATTEMPTS walks, and a result that still overlapped one is marked as sampled
+    * (approximate). in the other modes a walk concurrent with a change is approximate as well, but unmarked.
+    * complexity: O(n) work, O(logn) span per walk.
+    */
+   public TreeStats stats()
+   {
+	   for (int attempt = 1; ; attempt++) {
+		   long stamp = version;
+		   IAVLNode root = getRoot();
+		   ShapeCount count = null;
+		   int height = -1;
+		   if ((root != null) && root.isRealNode()) {
+			   count = ForkJoinPool.commonPool().invoke(new ShapeTask(root, 0));
+			   height = root.getHeight();
+		   }
+		   VarHandle.acquireFence(); // the reads above may not move below the version check
+		   boolean consistent = ((stamp & 1) == 0) && (version == stamp);
+		   if (consistent || (attempt == STATS_ATTEMPTS)) {
+			   TreeStats stats = new TreeStats(!consistent);
+			   if (count != null) {
+				   stats.add(count);
+				   stats.height = height;
+			   }
+			   return stats;
+		   }
+		   Thread.onSpinWait();
+	   }
+   }
+   
+   /**
+    * public TreeStats sampledStats(int samples, long seed)
+    *
+    * Returns an estimate of stats() from 'samples' nodes chosen uniformly at random
+    * by rank (using the subtree sizes). height and node count are exact.
+    * every sample is a single root-to-node walk, so it can run from a monitoring
+    * thread while the tree is in use (the result is then approximate).
+    * complexity: O(samples * logn).
+    */
+   public TreeStats sampledStats(int samples, long seed)
+   {
+	   TreeStats stats = new TreeStats(true);
+	   IAVLNode root = getRoot();
+	   if ((root == null) || !root.isRealNode()) {
+		   return stats;
+	   }
+	   SplittableRandom random = new SplittableRandom(seed);
+	   ShapeCount count = new ShapeCount();
+	   for (int i = 0; i < samples; i++) {
+		   int index = random.nextInt(root.getSize()); // the rank of the sampled node
+		   IAVLNode node = root;
+		   int depth = 0;
+		   while ((node != null) && node.isRealNode() && (depth <= TreeStats.MAX_WALK)) {
+			   IAVLNode left = node.getLeft();
+			   if (left == null) { // torn by a concurrent change, drop the sample
+				   break;
+			   }
+			   int leftSize = left.getSize();
+			   if (index == leftSize) {
+				   count.addNode(node, depth);
+				   break;
+			   }
+			   if (index < leftSize) {
+				   node = left;
+			   }
+			   else {
+				   index -= leftSize + 1;
+				   node = node.getRight();
+			   }
+			   depth++;
+		   }
+	   }
+	   stats.add(count);
+	   if (count.nodes > 0) { // scale the sample up to the whole tree
+		   double scale = (double) root.getSize() / count.nodes;
+		   stats.evenNodes = Math.round(count.evenNodes * scale);
+		   stats.unevenNodes = Math.round(count.unevenNodes * scale);
+		   stats.wideNodes = Math.round(count.wideNodes * scale);
+		   stats.invalidNodes = Math.round(count.invalidNodes * scale);
+	   }
+	   stats.nodeCount = root.getSize();
+	   stats.height = root.getHeight();
+	   return stats;
+   }
+   /**
+    * private String recSearchNode(int k, IAVLNode node)
+    *
+    * returns the node with key k 
+    	* precondition:  search(x) != null
+	* complexity: O(logn).
+    */  
+   private IAVLNode recSearchNode(int k, IAVLNode node) {
+ 	  while (node.isRealNode()) {
+ 		  if (node.getKey() == k) {
+ 			  return node;
+ 		  }
+ 		  else {
+ 		  if (node.getKey() < k) {
+ 			  return recSearchNode(k, node.getRight());
+ 		  }
  		  else {
  		  if (node.getKey() > k) {
  			  return recSearchNode(k, node.getLeft());
@@ -935,311 +2505,520 @@ public class AVLTree {
  	  return null;
    }
    
-   /**
-    * private IAVLNode resetNode (IAVLNode node)
-    * returns a new node identical to the one given with pointers to virtual leaves
-    * complexity: O(1).
-    */
-   private IAVLNode resetNode (IAVLNode node) {
-	   return new AVLNode(node.getKey(), node.getValue(), null, true);
-   }
-   
-   /**
-    * private AVLTree createSmallerTree (IAVLNode root)
-    * returns subtree with root "root" 
-    *  tree.max will be the correct max
-    *  tree.min will be this.min
-    *  postcondition:
-    *  		tree's min might not be tree's real min
-    *  complexity:
-    *  		let h be root's subtree's height.
-    *  		complexity = treeMax complexity = O(logh).
-    */
-   private AVLTree createSmallerTree (IAVLNode root) {
-	   AVLTree tree =new AVLTree();
-	   tree.setRoot(root);  
-	   tree.setMax(treeMax(root));
-	   tree.setMin(this.getMin());
-	   root.setParent(null);
-	   return tree;
-   }
-   
-   /**
-    * private AVLTree createLargerTree (IAVLNode root)
-    * returns subtree with root "root" 
-    *  tree.min will be the correct min
-    *  tree.max will be this.max
-    *  *  postcondition:
-    *  		tree's max might not be tree's real max
-    *  complexity:
-    *  		let h be root's subtree's height.
-    *  		complexity = treeMin complexity = O(logh).
-    */
-   private AVLTree createLargerTree (IAVLNode root) {
-	   AVLTree tree =new AVLTree();
-	   tree.setRoot(root);  
-	   tree.setMax(this.getMax());
-	   tree.setMin(treeMin(root));
-	   root.setParent(null);
-	   return tree;
-   }
-      
      /**
     * public string split(int x)
     *
     * splits the tree into 2 trees according to the key x. 
     * Returns an array [t1, t2] with two AVL trees. keys(t1) < x < keys(t2).
 	  * precondition: search(x) != null (i.e. you can also assume that the tree is not empty)
-    * postcondition: none
-    * complexity = O(logn).
+    * postcondition: the tree itself is left empty, its nodes are moved into t1 and t2
+    * complexity = O(logn), plus O(h) to hand over h heap entries of expiring items.
     */   
    public AVLTree[] split(int x)
    {
-	   AVLTree t1 = new AVLTree();
-	   AVLTree t2 = new AVLTree();
-	   IAVLNode nodeToSplit = this.recSearchNode(x,this.getRoot());// find node with key x
-	   if (nodeToSplit.getLeft().isRealNode()) {// t1 is x's left subtree
-		   t1=this.createSmallerTree(nodeToSplit.getLeft());
-	   }
-	   else if (!(nodeToSplit==this.getMin())) {//smaller tree min will be this.min, max will be the first node to join to t1
-		   t1.setMin(this.getMin());
-		   t1.setMax(this.getMin());
+	   AVLTree[] result;
+	   beginWrite();
+	   try {
+		   long start = (metrics == null) ? 0 : System.nanoTime();
+		   result = splitTree(x);
+		   if (metrics != null) {
+			   metrics.record(Operation.SPLIT, start, 0);
+		   }
 	   }
-	   if (nodeToSplit.getRight().isRealNode()) {// t2 is x's right subtree
-		   t2=this.createLargerTree(nodeToSplit.getRight());
+	   finally {
+		   endWrite();
 	   }
-	   else if (!(nodeToSplit==this.getMax())) {//larger tree max will be this.max, min will be the first node to join to t2
-		   t2.setMax(this.getMax());
-		   t2.setMin(this.getMax());
-	   }
-	   while (nodeToSplit.getParent()!=null) {
-		   if (nodeToSplit.getParent().getRight()==nodeToSplit) {// nodeToSplit.getParent() and its' left subtree are smaller than x
-			   AVLTree leftSubTree= new AVLTree();
-			   IAVLNode xNodeToJoin = nodeToSplit.getParent();
-			   leftSubTree.setRoot(nodeToSplit.getParent().getLeft());
-			   leftSubTree.getRoot().setParent(null);// delete parent to use only the left subtree
-			   t1.join(resetNode(xNodeToJoin), leftSubTree); //join with t1
-		   }
-		   else{// nodeToSplit.getParent() and its' right subtree are larger than x
-			   AVLTree rightSubTree= new AVLTree();
-			   IAVLNode xNodeToJoin = nodeToSplit.getParent();
-			   rightSubTree.setRoot(nodeToSplit.getParent().getRight());
-			   rightSubTree.getRoot().setParent(null);// delete parent to use only the right subtree
-			   t2.join(resetNode(xNodeToJoin), rightSubTree); //join with t2
-		   }
-		   nodeToSplit = nodeToSplit.getParent(); //continue until reached the root
+	   if (changeLog != null) { // may wait for consumers, so only after the write
+		   changeLog.publish(Operation.SPLIT, x, null, 0);
 	   }
-	   AVLTree[] result = new AVLTree[2];
-	   result[0]=t1;
-	   result[1]=t2;
-	   return result; 
+	   return result;
    }
+   
    /**
-    * public join(IAVLNode x, AVLTree t)
+    * private AVLTree[] splitTree(int x)
     *
-    * joins t and x with the tree. 	
-    * Returns the complexity of the operation (|tree.rank - t.rank| + 1).
-	  * precondition: keys(x,t) < keys() or keys(x,t) > keys(). t/tree might be empty (rank = -1).
-    * postcondition: none
-    * complexity = |tree.rank - t.rank| + 1
-    */   
-   public int join(IAVLNode x, AVLTree t)
+    * the uninstrumented split(x), adds the rank gaps of its joins to the metrics
+    * walks from x up to the root and relinks every ancestor, as the pivot, between the subtree
+    * collected so far on its side and its own other subtree. the two result trees are the only
+    * allocations: their shells carry the rotations, and empty subtrees are the existing virtual nodes.
+    * min and max come from the tree's min and max and from x's predecessor and successor.
+    * complexity = O(logn).
+    */
+   private AVLTree[] splitTree(int x)
    {
-	   int complexity;
-	   IAVLNode nodeToJoin;
-	   if ((this.empty())&&(t.empty())) {//return x
-		   this.setRoot(x);
-		   complexity = 1;
-
+	   int rankGap = 0;
+	   AVLTree t1 = createTree();
+	   AVLTree t2 = createTree();
+	   t1.hashed = this.hashed;
+	   t2.hashed = this.hashed;
+	   IAVLNode nodeToSplit = this.recSearchNode(x,this.getRoot());// find node with key x
+	   IAVLNode splitNode = nodeToSplit;
+	   IAVLNode smallerMax = predecessor(nodeToSplit); // null if x is the minimum
+	   IAVLNode largerMin = successor(nodeToSplit); // null if x is the maximum
+	   IAVLNode[] roots = {nodeToSplit.getLeft(), nodeToSplit.getRight()}; // t1 starts as x's left subtree, t2 as its right subtree
+	   rankGap = splitPath(nodeToSplit, roots, t1, t2);
+	   IAVLNode smallerRoot = roots[0];
+	   IAVLNode largerRoot = roots[1];
+	   if (smallerMax != null) {
+		   t1.setRoot(smallerRoot);
+		   t1.setMin(this.getMin());
+		   t1.setMax(smallerMax);
 	   }
-	   else if (this.empty()){//only tree is empty 
-		   complexity = ((AVLNode)t.getRoot()).getRank()+2;//=|tree.rank --1| + 1
-		   t.insert(x.getKey(),x.getValue());
-		   this.setRoot(t.getRoot());
-		   
+	   if (largerMin != null) {
+		   t2.setRoot(largerRoot);
+		   t2.setMin(largerMin);
+		   t2.setMax(this.getMax());
 	   }
-	   else if (t.empty()){//symetric case, only t is empty
-		   complexity = ((AVLNode)this.getRoot()).getRank()+2;//=|-1 - t.rank| + 1
-		   this.insert(x.getKey(), x.getValue());
-		   
+	   this.setRoot(null);
+	   this.setMin(null);
+	   this.setMax(null);
+	   if (cache != null) {
+		   cache.clear();
 	   }
-	   else {
-		   complexity = Math.abs(((AVLNode)t.getRoot()).getRank()-((AVLNode)this.getRoot()).getRank())+1;   
-		   if (x.getKey()<this.getRoot().getKey()) {//the order is t -> x -> tree
-			   if (((AVLNode) t.getRoot()).getRank()<((AVLNode) this.getRoot()).getRank()) {//t has smaller rank, travel down tree
-				   nodeToJoin=findNodeLeft(this,((AVLNode) t.getRoot()).getRank()+1);
-				   joinToTheLeft (nodeToJoin,x,t);
-			   }
-			   else if (((AVLNode) t.getRoot()).getRank()>((AVLNode) this.getRoot()).getRank()) {//tree has smaller rank, travel down t
-				   nodeToJoin=findNodeRight(t,((AVLNode) this.getRoot()).getRank()+1);
-				   joinToTheRight (nodeToJoin,x,this);
-				   this.setRoot(t.getRoot());
-			   }
-			   else {//both trees have the same rank
-				   joinEqualRanks(t, x, this);
-				   this.setRoot(x);;
-			   }
-		   }
-		   else {//the order is tree -> x -> t
-			   if (((AVLNode) t.getRoot()).getRank()<((AVLNode) this.getRoot()).getRank()) {//t has smaller rank, travel down tree
-				   nodeToJoin=findNodeRight(this,((AVLNode) t.getRoot()).getRank()+1);
-				   joinToTheRight (nodeToJoin,x,t);
-			   }
-			   else if (((AVLNode) t.getRoot()).getRank()>((AVLNode) this.getRoot()).getRank()) {//tree has smaller rank, travel down t
-				   nodeToJoin=findNodeLeft(t,((AVLNode) this.getRoot()).getRank()+1);
-				   joinToTheLeft (nodeToJoin,x,this);
-				   this.setRoot(t.getRoot());
+	   this.finger = null;
+	   if (expiries != null) { // one pass over the heap, x's entries are dropped with it
+		   expiries.retain((key, deadline) -> {
+			   AVLTree target = (key < x) ? t1 : t2;
+			   if (key != x) {
+				   if (target.expiries == null) {
+					   target.expiries = new ExpiryHeap();
+				   }
+				   target.expiries.push(deadline, key);
 			   }
-			   else {//both trees have the same rank
-				   joinEqualRanks(this, x, t);
-				   this.setRoot(x);
-			   } 
-		   }
-	   }
-	   update(x);
-	   ((AVLNode)x).setRank(x.getHeight());//subtree from x downwards is legal AVL -> x.rank=x.height
-	   this.joinTreeFieldsUpdate(t, x);// update min, max
-	   if ((this.getRoot()!=x)&&(x.getParent()!=null)) {// may need to rebalance and update up to the root
-		   this.joinUpdateAndRebalance(x);//update IAVLNode fields and rebalance
-
+			   return false;
+		   });
+		   this.expiries = null;
 	   }
-	   else {//both of x's subtrees are AVL of the same rank therefore no need to update them or rebalance, only update x
-		   this.update(x);
+	   recycle(splitNode); // x is in neither result tree
+	   if (metrics != null) {
+		   metrics.splitRankGap += rankGap;
 	   }
-
-	   return complexity; 
+	   AVLTree[] result = new AVLTree[2];
+	   result[0]=t1;
+	   result[1]=t2;
+	   return result; 
    }
-   
- /**
-  * private IAVLNode findNodeLeft (AVLTree tree, int rank)
-  * finds node in tree's leftmost subtree with rank <= "rank"
-  * returns node
-  	* preconditions: tree.root.rank>rank
-  * postconditions: none
-  * complexity = O(rank).
-  */
-   private IAVLNode findNodeLeft (AVLTree tree, int rank) {
-	   IAVLNode currentNode=tree.getRoot();
-	   while (((AVLNode)currentNode.getLeft()).getRank()>rank) {//travel to desired rank
-		   currentNode=currentNode.getLeft();
+   /**
+    * private int splitPath(IAVLNode nodeToSplit, IAVLNode[] roots, AVLTree t1, AVLTree t2)
+    *
+    * climbs from nodeToSplit to the root and joins every ancestor, with its subtree on the other side
+    * of the path, into roots[0] if it is smaller than nodeToSplit or into roots[1] if it is larger.
+    * roots start as the subtrees (or virtual nodes) below the split point and end as the roots
+    * of t1 and t2, which may be virtual nodes.
+    * returns the sum of the rank gaps of the joins.
+    * complexity = O(logn).
+    */
+   private int splitPath(IAVLNode nodeToSplit, IAVLNode[] roots, AVLTree t1, AVLTree t2) {
+	   int rankGap = 0;
+	   IAVLNode smallerRoot = roots[0];
+	   IAVLNode largerRoot = roots[1];
+	   IAVLNode parent = nodeToSplit.getParent(); // nodeToSplit may be roots[0] itself
+	   smallerRoot.setParent(null);
+	   largerRoot.setParent(null);
+	   while (parent != null) {
+		   IAVLNode grandParent = parent.getParent(); // joining overwrites parent's pointers
+		   if (parent.getRight()==nodeToSplit) {// parent and its' left subtree are smaller than x
+			   IAVLNode leftSubTree = parent.getLeft();
+			   leftSubTree.setParent(null);// delete parent to use only the left subtree
+			   rankGap += Math.abs(leftSubTree.getRank() - smallerRoot.getRank());
+			   smallerRoot = t1.joinNodes(leftSubTree, parent, smallerRoot); //join with t1
+		   }
+		   else{// parent and its' right subtree are larger than x
+			   IAVLNode rightSubTree = parent.getRight();
+			   rightSubTree.setParent(null);// delete parent to use only the right subtree
+			   rankGap += Math.abs(rightSubTree.getRank() - largerRoot.getRank());
+			   largerRoot = t2.joinNodes(largerRoot, parent, rightSubTree); //join with t2
+		   }
+		   nodeToSplit = parent; //continue until reached the root
+		   parent = grandParent;
 	   }
-	   return currentNode;
+	   roots[0] = smallerRoot;
+	   roots[1] = largerRoot;
+	   return rankGap;
    }
    
    /**
-    * private IAVLNode findNodeRight (AVLTree tree, int rank)
-    * finds node in tree's rightmost subtree with rank <= "rank"
-    * returns node
-    	* preconditions: tree.root.rank>rank
-    * postconditions: none
-    * complexity = O(rank).
+    * private AVLTree[] splitBelow(long bound)
+    *
+    * splits the tree into [t1, t2] with keys(t1) < bound <= keys(t2), bound need not be in the tree.
+    * descends to the virtual node where bound would be inserted and splits the path above it.
+    * postcondition: the tree itself is left empty
+    * complexity = O(logn).
     */
-     private IAVLNode findNodeRight (AVLTree tree, int rank) {
-  	   IAVLNode currentNode=tree.getRoot();
-  	   while (((AVLNode)currentNode.getRight()).getRank()>rank) {//travel to desired rank
-  		   currentNode=currentNode.getRight();
-  	   }
-  	   return currentNode;
-     }
-   
-     /**
-      * private void joinToTheLeft (IAVLNode node, IAVLNode x, AVLTree tree)
-      * joins x and tree to the left side of the node and it's son
-      * preconditions: node.left != null
-      * complexity = O(1).
-      */
-   private void joinToTheLeft (IAVLNode node, IAVLNode x, AVLTree tree) {
-	   x.setLeft(tree.getRoot());
-	   tree.getRoot().setParent(x);
-	   x.setRight(node.getLeft());
-	   x.getRight().setParent(x);
-	   node.setLeft(x);
-	   x.setParent(node);  
+   private AVLTree[] splitBelow(long bound) {
+	   AVLTree t1 = createTree();
+	   AVLTree t2 = createTree();
+	   t1.hashed = this.hashed;
+	   t2.hashed = this.hashed;
+	   IAVLNode[] roots = new IAVLNode[2];
+	   if (!empty()) {
+		   IAVLNode node = getRoot();
+		   while (node.isRealNode()) {
+			   node = (node.getKey() < bound) ? node.getRight() : node.getLeft();
+		   }
+		   // node is the virtual leaf at bound, it starts the smaller side and a new one the larger side
+		   roots[0] = node;
+		   roots[1] = ((AVLNode)node.getParent()).createVirtualNode(null);
+		   splitPath(node, roots, t1, t2);
+		   if (roots[0].isRealNode()) {
+			   t1.setRoot(roots[0]);
+			   t1.setMin(this.getMin());
+			   t1.setMax(treeMax(roots[0]));
+		   }
+		   if (roots[1].isRealNode()) {
+			   t2.setRoot(roots[1]);
+			   t2.setMin(treeMin(roots[1]));
+			   t2.setMax(this.getMax());
+		   }
+	   }
+	   this.setRoot(null);
+	   this.setMin(null);
+	   this.setMax(null);
+	   if (cache != null) {
+		   cache.clear();
+	   }
+	   this.finger = null;
+	   return new AVLTree[] {t1, t2};
    }
    
    /**
-    * private void joinToTheRight (IAVLNode node, IAVLNode x, AVLTree tree)
-    * joins x and tree to the right side of the node and it's son
-    * preconditions: node.right != null
-    * complexity = O(1).
+    * public int deleteRange(int lo, int hi)
+    *
+    * deletes every item with lo <= key <= hi: splits the tree at lo and after hi, and joins the outer
+    * two trees around the minimum of the upper one, instead of a delete per key.
+    * the removed nodes fill the node pool, if there is one. with a change log, a delete is published per key.
+    * returns the number of deleted items.
+    * the heap entries of deleted expiring items stay behind and are discarded as stale by expire.
+    * complexity: O(logn), plus O(k) for the k deleted keys when they are recycled or published.
     */
-   private void joinToTheRight (IAVLNode node, IAVLNode x, AVLTree tree) {
-	   x.setRight(tree.getRoot());
-	   tree.getRoot().setParent(x);
-	   x.setLeft(node.getRight());
-	   x.getLeft().setParent(x);
-	   node.setRight(x);
-	   x.setParent(node); 
+   public int deleteRange(int lo, int hi) {
+	   AVLTree range = takeRange(lo, hi, false);
+	   int deleted = range.size();
+	   if ((pool != null) && !concurrentReads && (deleted > 0)) {
+		   recycleSubtree(range.getRoot());
+	   }
+	   return deleted;
    }
    
    /**
-    * private void joinEqualRanks (AVLTree leftTree, IAVLNode x, AVLTree rightTree)
-    * joins leftTree to the left of x, and rightTree to the right
-    *  complexity = O(1).
+    * public AVLTree extractRange(int lo, int hi)
+    *
+    * removes every item with lo <= key <= hi from the tree and returns them as a tree of their own,
+    * with the tree's aggregator, rank rule and hashing.
+    * with a change log, a delete is published per key.
+    * complexity: O(logn), plus O(k) for the k extracted keys when they are published,
+    * plus O(min(k, h)) to hand over the deadlines when the tree's heap holds h entries of expiring items.
     */
-   private void joinEqualRanks (AVLTree leftTree, IAVLNode x, AVLTree rightTree) {
-	   x.setLeft(leftTree.getRoot());
-	   leftTree.getRoot().setParent(x);
-	   x.setRight(rightTree.getRoot());
-	   rightTree.getRoot().setParent(x);
-	    
+   public AVLTree extractRange(int lo, int hi) {
+	   return takeRange(lo, hi, true);
    }
    
    /**
-    *private void joinTreeFieldsUpdate (AVLTree t, IAVLNode x)
+    * private AVLTree takeRange(int lo, int hi, boolean handover)
     *
-    *  updates the tree's AVLTree fields in O(1):
+    * extractRange(lo, hi), whose result keeps the deadlines of its items only if handover is set
+    * complexity: as extractRange.
+    */
+   private AVLTree takeRange(int lo, int hi, boolean handover) {
+	   AVLTree range;
+	   beginWrite();
+	   try {
+		   range = removeRange(lo, hi, handover);
+	   }
+	   finally {
+		   endWrite();
+	   }
+	   if ((changeLog != null) && !range.empty()) { // may wait for consumers, so only after the write
+		   for (int key : range.keysToArray()) {
+			   changeLog.publish(Operation.DELETE, key, null, 0);
+		   }
+	   }
+	   return range;
+   }
+   
+   /**
+    * private AVLTree removeRange(int lo, int hi, boolean handover)
+    *
+    * the uninstrumented takeRange(lo, hi, handover)
+    * complexity: O(logn), plus O(min(k, h)) for the handover.
+    */
+   private AVLTree removeRange(int lo, int hi, boolean handover) {
+	   if (empty() || (lo > hi)) {
+		   AVLTree range = createTree();
+		   range.hashed = this.hashed;
+		   return range;
+	   }
+	   AVLTree[] lower = splitBelow(lo);
+	   AVLTree[] upper = lower[1].splitBelow((long) hi + 1);
+	   AVLTree smaller = lower[0];
+	   AVLTree larger = upper[1];
+	   if (larger.empty()) { // the tree keeps the keys below lo
+		   adopt(smaller);
+	   }
+	   else {
+		   IAVLNode x = larger.getMin(); // taken out of larger to join the two
+		   long deadline = ((AVLNode)x).getDeadline(); // its heap entry stays valid
+		   larger.deleteItem(x.getKey());
+		   ((AVLNode)x).reset(x.getKey(), x.getValue(), ((AVLNode)x).getWeight(), null);
+		   ((AVLNode)x).setDeadline(deadline);
+		   adopt(smaller);
+		   joinTrees(x, larger);
+	   }
+	   if (handover) {
+		   handOverExpiries(upper[0], lo, hi);
+	   }
+	   return upper[0];
+   }
+   
+   /**
+    * private void adopt(AVLTree t)
+    *
+    * takes over the nodes of t, the tree is empty
+    * complexity: O(1).
+    */
+   private void adopt(AVLTree t) {
+	   this.setRoot(t.getRoot());
+	   this.setMin(t.getMin());
+	   this.setMax(t.getMax());
+   }
+   
+   /**
+    * private void recycleSubtree(IAVLNode node)
+    *
+    * puts the nodes of a removed subtree into the node pool until it is full
+    * complexity: O(min(k, pool room)) for k nodes in the subtree.
+    */
+   private void recycleSubtree(IAVLNode node) {
+	   if (node.isRealNode() && (pooled < pool.length)) {
+		   IAVLNode left = node.getLeft();
+		   IAVLNode right = node.getRight();
+		   recycle(node);
+		   recycleSubtree(left);
+		   recycleSubtree(right);
+	   }
+   }
+   
+   /**
+    * public join(IAVLNode x, AVLTree t)
+    *
+    * joins t and x with the tree. 	
+    * Returns the complexity of the operation (|tree.rank - t.rank| + 1).
+	  * precondition: keys(x,t) < keys() or keys(x,t) > keys(). t/tree might be empty (rank = -1).
+    * postcondition: none
+    * complexity = |tree.rank - t.rank| + 1, plus O(h) to take over h heap entries of expiring items in t
+    */   
+   public int join(IAVLNode x, AVLTree t)
+   {
+	   int complexity;
+	   beginWrite();
+	   try {
+		   long start = (metrics == null) ? 0 : System.nanoTime();
+		   complexity = joinTrees(x, t);
+		   if (metrics != null) {
+			   metrics.joinRankGap += complexity - 1;
+			   metrics.record(Operation.JOIN, start, complexity);
+		   }
+	   }
+	   finally {
+		   endWrite();
+	   }
+	   if (changeLog != null) {
+		   changeLog.publish(Operation.JOIN, x.getKey(), x.getValue(), ((AVLNode)x).getWeight());
+	   }
+	   return complexity;
+   }
+   
+   /**
+    * private int joinTrees(IAVLNode x, AVLTree t)
+    *
+    * the uninstrumented join(x, t)
+    * an empty tree is represented by one of x's virtual children while linking.
+    * complexity = |tree.rank - t.rank| + 1
+    */
+   private int joinTrees(IAVLNode x, AVLTree t)
+   {
+	   boolean tIsSmaller; // the order is t -> x -> tree
+	   if (!this.empty()) {
+		   tIsSmaller = x.getKey() < this.getRoot().getKey();
+	   }
+	   else {
+		   tIsSmaller = (!t.empty()) && (t.getRoot().getKey() < x.getKey());
+	   }
+	   AVLTree smaller = tIsSmaller ? t : this;
+	   AVLTree larger = tIsSmaller ? this : t;
+	   IAVLNode smallerRoot = smaller.empty() ? virtualChild(x, x.getLeft()) : smaller.getRoot();
+	   IAVLNode largerRoot = larger.empty() ? virtualChild(x, x.getRight()) : larger.getRoot();
+	   int complexity = Math.abs(smallerRoot.getRank() - largerRoot.getRank()) + 1;
+	   
+	   this.joinTreeFieldsUpdate(t, x); // update min, max
+	   this.setRoot(joinNodes(smallerRoot, x, largerRoot));
+	   if (t.cache != null) { // t's nodes now belong to the tree
+		   t.cache.clear();
+	   }
+	   t.finger = null;
+	   t.moveExpiries(this, Long.MIN_VALUE, Long.MAX_VALUE); // t's items now expire in the tree
+	   return complexity; 
+   }
+   
+   /**
+    * private IAVLNode virtualChild(IAVLNode x, IAVLNode child)
+    * returns x's child if it is a virtual node, otherwise a new virtual node
+    * complexity = O(1).
+    */
+   private IAVLNode virtualChild(IAVLNode x, IAVLNode child) {
+	   if ((child != null) && !child.isRealNode()) {
+		   return child;
+	   }
+	   return ((AVLNode)x).createVirtualNode(x);
+   }
+   
+   /**
+    * private IAVLNode joinNodes(IAVLNode left, IAVLNode x, IAVLNode right)
+    *
+    * links the AVL subtrees 'left' and 'right' (each may be a virtual node) with x between them,
+    * keys(left) < x < keys(right), and returns the root of the joined subtree.
+    * x is hung on the spine of the higher subtree where the ranks meet, then rebalanced as after insert.
+    * complexity = O(|left.rank - right.rank| + 1).
+    */
+   private IAVLNode joinNodes(IAVLNode left, IAVLNode x, IAVLNode right) {
+	   int leftRank = left.getRank();
+	   int rightRank = right.getRank();
+	   if (Math.abs(leftRank - rightRank) <= 1) { // x is the new root
+		   joinEqualRanks(left, x, right);
+		   x.setParent(null);
+		   update(x);
+		   ((AVLNode)x).setRank(Math.max(leftRank, rightRank) + 1);
+		   return x;
+	   }
+	   if (leftRank > rightRank) { // travel down the right spine of left
+		   this.setRoot(left);
+		   left.setParent(null);
+		   joinToTheRight(findNodeRight(left, rightRank + 1), x, right);
+	   }
+	   else { // travel down the left spine of right
+		   this.setRoot(right);
+		   right.setParent(null);
+		   joinToTheLeft(findNodeLeft(right, leftRank + 1), x, left);
+	   }
+	   update(x);
+	   ((AVLNode)x).setRank(Math.max(x.getLeft().getRank(), x.getRight().getRank()) + 1); // x is 1,1 / 1,2 / 2,1
+	   this.joinUpdateAndRebalance(x); // update IAVLNode fields and rebalance
+	   return this.getRoot();
+   }
+   
+ /**
+  * private IAVLNode findNodeLeft (IAVLNode root, int rank)
+  * finds node in root's leftmost path whose left child has rank <= "rank"
+  * returns node
+  	* preconditions: root.rank>rank
+  * postconditions: none
+  * complexity = O(root.rank - rank).
+  */
+   private IAVLNode findNodeLeft (IAVLNode root, int rank) {
+	   IAVLNode currentNode=root;
+	   while (currentNode.getLeft().getRank()>rank) {//travel to desired rank
+		   currentNode=currentNode.getLeft();
+	   }
+	   return currentNode;
+   }
+   
+   /**
+    * private IAVLNode findNodeRight (IAVLNode root, int rank)
+    * finds node in root's rightmost path whose right child has rank <= "rank"
+    * returns node
+    	* preconditions: root.rank>rank
+    * postconditions: none
+    * complexity = O(root.rank - rank).
+    */
+     private IAVLNode findNodeRight (IAVLNode root, int rank) {
+  	   IAVLNode currentNode=root;
+  	   while (currentNode.getRight().getRank()>rank) {//travel to desired rank
+  		   currentNode=currentNode.getRight();
+  	   }
+  	   return currentNode;
+     }
+   
+     /**
+      * private void joinToTheLeft (IAVLNode node, IAVLNode x, IAVLNode subtree)
+      * puts x between node and its left child, with subtree as x's left child
+      * preconditions: node.left != null
+      * complexity = O(1).
+      */
+   private void joinToTheLeft (IAVLNode node, IAVLNode x, IAVLNode subtree) {
+	   x.setLeft(subtree);
+	   subtree.setParent(x);
+	   x.setRight(node.getLeft());
+	   x.getRight().setParent(x);
+	   node.setLeft(x);
+	   x.setParent(node);  
+   }
+   
+   /**
+    * private void joinToTheRight (IAVLNode node, IAVLNode x, IAVLNode subtree)
+    * puts x between node and its right child, with subtree as x's right child
+    * preconditions: node.right != null
+    * complexity = O(1).
+    */
+   private void joinToTheRight (IAVLNode node, IAVLNode x, IAVLNode subtree) {
+	   x.setRight(subtree);
+	   subtree.setParent(x);
+	   x.setLeft(node.getRight());
+	   x.getLeft().setParent(x);
+	   node.setRight(x);
+	   x.setParent(node); 
+   }
+   
+   /**
+    * private void joinEqualRanks (IAVLNode left, IAVLNode x, IAVLNode right)
+    * joins left to the left of x, and right to the right
+    *  complexity = O(1).
+    */
+   private void joinEqualRanks (IAVLNode left, IAVLNode x, IAVLNode right) {
+	   x.setLeft(left);
+	   left.setParent(x);
+	   x.setRight(right);
+	   right.setParent(x);
+	    
+   }
+   
+   /**
+    *private void joinTreeFieldsUpdate (AVLTree t, IAVLNode x)
+    *
+    *  updates the tree's AVLTree fields in O(1), before the trees are linked:
     	*  min
     	*  max
+    *  a tree without min (an empty tree or a bare subtree) does not take part.
     *  complexity = O(1).
     */
    
    private void joinTreeFieldsUpdate (AVLTree t, IAVLNode x) {
-	   if ((t.getMin()==null)&&(this.getMin()==null)) {//both trees were empty
-		   this.setMin(x);
-		   this.setMax(x);
-	   }
-	   else if (t.getMin()==null) {//only t was empty
-		   this.setMin(findMinimalNode(this.getMin(),x));
-		   this.setMax(findMaximalNode(this.getMax(),x));
-	   }
-	   else if (this.getMin()==null) {//only tree was empty
-		   this.setMin(findMinimalNode(t.getMin(),x));
-		   this.setMax(findMaximalNode(t.getMax(),x));
-	   }
-	   else {// both trees not empty
-		   //min, max between tree and x
-		   this.setMin(findMinimalNode(this.getMin(),x));
-		   this.setMax(findMaximalNode(this.getMax(),x));
-		   //min, max between updated tree and t
-		   this.setMin(findMinimalNode(this.getMin(),t.getMin()));
-		   this.setMax(findMaximalNode(this.getMax(),t.getMax()));
-		   
+	   IAVLNode newMin = x;
+	   IAVLNode newMax = x;
+	   if (this.getMin() != null) {//min, max between tree and x
+		   newMin = findMinimalNode(this.getMin(), newMin);
+		   newMax = findMaximalNode(newMax, this.getMax()); // x wins a tie, it may be the copy of this.max
 	   }
+	   if (t.getMin() != null) {//min, max between updated tree and t
+		   newMin = findMinimalNode(t.getMin(), newMin);
+		   newMax = findMaximalNode(t.getMax(), newMax);
+	   }
+	   this.setMin(newMin);
+	   this.setMax(newMax);
    }
    
    /**
     * joinUpdateAndRebalance(IAVLNode node)
-    * rebalances if necessary 
-    * updates node's size and height using update(IAVL node)
+    * rebalances the joined node x as an inserted node: its rank is at most its new parent's rank,
+    * and since x.rank = x.height it is never a 1,1 node under a 0-difference parent
+    * updates the size and height of x's ancestors using update(IAVL node)
     * complexity = O(|tree.rank - t.rank|+1).
     */
    private void joinUpdateAndRebalance(IAVLNode node) {
-			   if ((rankDifferenceLeft(node)==1)&&(rankDifferenceRight(node)==1)) {//join private case
-				   if ((rankDifferenceLeft(node.getParent())==2)&&(rankDifferenceRight(node.getParent())==0)) {//join private case
-					   singleLeftRotation(node.getParent(), 2);
-				   }
-				   else if ((rankDifferenceLeft(node.getParent())==0)&&(rankDifferenceRight(node.getParent())==2)) {//join private case
-					   singleRightRotation(node.getParent(), 2);
-				   }
-			   }
-			   if ((node.getParent()!=null)&&!isBalanced(node.getParent())) {// parent node is not balanced
-				   insertRebalance(node.getParent());  //same as insert
-			   }
-		   while (node!=null) {//update nodes
-			   update(node);
-			   node=node.getParent();
-		   }
+	   insertRebalance(node); //same as insert
+	   while (node!=null) {//update nodes
+		   update(node);
+		   node=node.getParent();
+	   }
    }
    /**
     * private IAVLNode findMinimalNode (IAVLNode node1, IAVLNode node2)
@@ -1307,9 +3086,24 @@ public class AVLTree {
 	  	private int height;
 	  	private int size;
 	  	private int rank;
+	  	private long weight; // the numeric value of the item
+	  	private long aggregate; // the tree's aggregate over this subtree
+	  	private long hash; // the sum of the item hashes of this subtree, when the tree is hashed
+	  	private long deadline = NO_DEADLINE; // the time the item expires at
 	  	
 	  	public AVLNode(int key, String value, IAVLNode parent) { // constructor of real nodes
+	  		this(key, value, 0, parent);
+	  	}
+	  	
+	  	public AVLNode(int key, String value, long weight, IAVLNode parent) { // constructor of real nodes with a numeric value
 	  		this(key, value, parent, true);
+	  		this.weight = weight;
+	  		if (aggregator != null) {
+	  			this.aggregate = aggregator.lift(key, weight);
+	  		}
+	  		if (hashed) {
+	  			this.hash = itemHash(key, value);
+	  		}
 	  	}
 	  	
 	  	private AVLNode(int key, String value, IAVLNode parent, boolean realNode) {
@@ -1329,7 +3123,50 @@ public class AVLTree {
 	  			this.left = null;
 	  			this.right = null;
 	  			this.rank = -1;
+	  			if (aggregator != null) {
+	  				this.aggregate = aggregator.identity();
+	  			}
+	  		}
+	  	}
+	  	
+	  	/**
+	  	 * private void reset(int key, String value, long weight, IAVLNode parent)
+	  	 * 
+	  	 * turns a recycled node into a new real leaf, keeping the virtual children it still owns
+	  	 */
+	  	private void reset(int key, String value, long weight, IAVLNode parent) {
+	  		this.key = key;
+	  		this.value = value;
+	  		this.parent = parent;
+	  		this.height = 0;
+	  		this.size = 1;
+	  		this.rank = 0;
+	  		this.weight = weight;
+	  		this.left = ownedVirtualChild(this.left);
+	  		this.right = ownedVirtualChild(this.right);
+	  		this.aggregate = (aggregator != null) ? aggregator.lift(key, weight) : 0;
+	  		this.hash = hashed ? itemHash(key, value) : 0;
+	  		this.deadline = NO_DEADLINE;
+	  	}
+	  	
+	  	/**
+	  	 * private void detach()
+	  	 * 
+	  	 * drops the info, the parent and every child but the virtual ones the node owns,
+	  	 * so a pooled node holds no reference into the subtree it was removed with
+	  	 */
+	  	private void detach() {
+	  		this.value = null;
+	  		this.parent = null;
+	  		this.left = ownedVirtualChild(this.left);
+	  		this.right = ownedVirtualChild(this.right);
+	  	}
+	  	
+	  	private IAVLNode ownedVirtualChild(IAVLNode child) {
+	  		if ((child != null) && !child.isRealNode() && (child.getParent() == this)) {
+	  			return child;
 	  		}
+	  		return createVirtualNode(this);
 	  	}
 	  	
 	  	public IAVLNode createVirtualNode(IAVLNode parent) {
@@ -1344,6 +3181,10 @@ public class AVLTree {
 		{
 			return this.value; 
 		}
+		public void setValue(String value)
+		{
+			this.value = value; 
+		}
 		public void setLeft(IAVLNode node)
 		{
 			this.left = node; 
@@ -1398,6 +3239,38 @@ public class AVLTree {
 			this.rank = rank;
 		}
 		
+		public long getWeight() {
+			return this.weight;
+		}
+		
+		public void setWeight(long weight) {
+			this.weight = weight;
+		}
+		
+		public long getAggregate() {
+			return this.aggregate;
+		}
+		
+		public void setAggregate(long aggregate) {
+			this.aggregate = aggregate;
+		}
+		
+		public long getHash() {
+			return this.hash;
+		}
+		
+		public long getDeadline() {
+			return this.deadline;
+		}
+		
+		public void setDeadline(long deadline) {
+			this.deadline = deadline;
+		}
+		
+		public void setHash(long hash) {
+			this.hash = hash;
+		}
+		
 		/**
 		 * public boolean isLeaf()
 		 * 
@@ -1437,7 +3310,7 @@ public class AVLTree {
 		 }
 	
 		 public boolean isLeftChild() {
-			 if (this.getParent().getLeft().getKey() == this.getKey()) {
+			 if (this.getParent().getLeft() == this) {
 				 return true;
 			 }
 			 return false;
@@ -1445,4 +3318,5178 @@ public class AVLTree {
   }
 
 
+
+	/**
+	 * public interface Aggregator
+	 *
+	 * An associative function kept over every subtree of an AVLTree (AVLTree(Aggregator)),
+	 * so that aggregate(lo, hi) costs O(logn).
+	 * combine must be associative with identity() as its neutral element,
+	 * it is always applied in key order so it does not have to be commutative.
+	 * trees that are joined must share the same aggregator.
+	 */
+	public interface Aggregator {
+		public long identity(); // the aggregate of an empty subtree
+		public long lift(int key, long weight); // the aggregate of a single item
+		public long combine(long left, long right); // the aggregate of two adjacent key ranges
+	}
+	
+	/**
+	 * public enum Aggregators
+	 *
+	 * the standard aggregators over the keys or over the weights (numeric values) of the items
+	 */
+	public enum Aggregators implements Aggregator {
+		COUNT, SUM_KEYS, MIN_KEYS, MAX_KEYS, SUM_WEIGHTS, MIN_WEIGHTS, MAX_WEIGHTS;
+		
+		public long identity() {
+			switch (this) {
+			case MIN_KEYS:
+			case MIN_WEIGHTS:
+				return Long.MAX_VALUE;
+			case MAX_KEYS:
+			case MAX_WEIGHTS:
+				return Long.MIN_VALUE;
+			default:
+				return 0;
+			}
+		}
+		
+		public long lift(int key, long weight) {
+			switch (this) {
+			case COUNT:
+				return 1;
+			case SUM_KEYS:
+			case MIN_KEYS:
+			case MAX_KEYS:
+				return key;
+			default:
+				return weight;
+			}
+		}
+		
+		public long combine(long left, long right) {
+			switch (this) {
+			case MIN_KEYS:
+			case MIN_WEIGHTS:
+				return Math.min(left, right);
+			case MAX_KEYS:
+			case MAX_WEIGHTS:
+				return Math.max(left, right);
+			default:
+				return left + right;
+			}
+		}
+	}
+
+	/**
+	 * public enum Operation
+	 *
+	 * the tree operations whose latency is recorded by TreeMetrics
+	 */
+	public enum Operation {
+		SEARCH, INSERT, DELETE, SPLIT, JOIN
+	}
+	
+	/**
+	 * public interface MetricsListener
+	 *
+	 * receives every operation recorded by a TreeMetrics, on the thread that ran it
+	 */
+	public interface MetricsListener {
+		public void operationCompleted(Operation operation, long nanos, int rebalancing); // rebalancing: the operation's return value (0 for search and split)
+	}
+	
+	/**
+	 * public interface TreeMetricsMXBean
+	 *
+	 * the JMX view of TreeMetrics
+	 */
+	public interface TreeMetricsMXBean {
+		public long getPromotions();
+		public long getDemotions();
+		public long getSingleRotations();
+		public long getDoubleRotations();
+		public long getSearches();
+		public double getAverageSearchPath();
+		public int getMaxSearchPath();
+		public long getJoinRankGap();
+		public long getSplitRankGap();
+		public long getCount(String operation);
+		public long getLatencyPercentile(String operation, double percentile);
+		public void reset();
+	}
+	
+	/**
+	 * public static class TreeMetrics
+	 *
+	 * counters and latency histograms of the operations of the trees it is set on (AVLTree.setMetrics).
+	 * the counters are plain fields updated by the thread that mutates the tree,
+	 * so a monitoring thread reading them (for example through JMX) may see slightly stale values.
+	 */
+	public static class TreeMetrics implements TreeMetricsMXBean {
+		
+		private long promotions;
+		private long demotions;
+		private long rotations; // every single rotation, including both halves of a double rotation
+		private long doubleRotations;
+		private long searches;
+		private long searchPathLength; // sum of the search path lengths
+		private int maxSearchPath;
+		private long joinRankGap; // sum of |tree.rank - t.rank| of the joins
+		private long splitRankGap; // sum of the rank gaps of the joins made by the splits
+		private final LatencyHistogram[] latencies;
+		private MetricsListener listener;
+		
+		public TreeMetrics() { // Constructor
+			this.latencies = new LatencyHistogram[Operation.values().length];
+			for (int i = 0; i < latencies.length; i++) {
+				latencies[i] = new LatencyHistogram();
+			}
+			this.listener = null;
+		}
+		
+		/**
+		 * public void setListener(MetricsListener listener)
+		 *
+		 * sets the listener that receives every recorded operation, null removes it
+		 * complexity: O(1).
+		 */
+		public void setListener(MetricsListener listener) {
+			this.listener = listener;
+		}
+		
+		/**
+		 * public ObjectName register(String name)
+		 *
+		 * registers the metrics in the platform MBean server as AVLTree:type=TreeMetrics,name='name'
+		 * returns the name it was registered under
+		 */
+		public ObjectName register(String name) throws JMException {
+			ObjectName objectName = new ObjectName("AVLTree:type=TreeMetrics,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			return objectName;
+		}
+		
+		/**
+		 * private void record(Operation operation, long start, int rebalancing)
+		 *
+		 * records an operation that started at System.nanoTime() 'start' and just ended
+		 * complexity: O(1).
+		 */
+		private void record(Operation operation, long start, int rebalancing) {
+			long nanos = System.nanoTime() - start;
+			latencies[operation.ordinal()].record(nanos);
+			if (listener != null) {
+				listener.operationCompleted(operation, nanos, rebalancing);
+			}
+		}
+		
+		private void recordSearch(int pathLength) {
+			searches++;
+			searchPathLength += pathLength;
+			if (pathLength > maxSearchPath) {
+				maxSearchPath = pathLength;
+			}
+		}
+		
+		public long getPromotions() {
+			return promotions;
+		}
+		
+		public long getDemotions() {
+			return demotions;
+		}
+		
+		public long getSingleRotations() {
+			return rotations - 2 * doubleRotations;
+		}
+		
+		public long getDoubleRotations() {
+			return doubleRotations;
+		}
+		
+		public long getSearches() {
+			return searches;
+		}
+		
+		public double getAverageSearchPath() {
+			if (searches == 0) {
+				return 0;
+			}
+			return (double) searchPathLength / searches;
+		}
+		
+		public int getMaxSearchPath() {
+			return maxSearchPath;
+		}
+		
+		public long getJoinRankGap() {
+			return joinRankGap;
+		}
+		
+		public long getSplitRankGap() {
+			return splitRankGap;
+		}
+		
+		/**
+		 * public long getCount(String operation)
+		 *
+		 * returns the number of recorded operations named 'operation' (an Operation name)
+		 */
+		public long getCount(String operation) {
+			return getLatency(Operation.valueOf(operation)).getCount();
+		}
+		
+		/**
+		 * public long getLatencyPercentile(String operation, double percentile)
+		 *
+		 * returns an upper bound (within a factor of 2) of the given percentile (0-100)
+		 * of the latencies in nanoseconds of the operations named 'operation'
+		 */
+		public long getLatencyPercentile(String operation, double percentile) {
+			return getLatency(Operation.valueOf(operation)).percentile(percentile);
+		}
+		
+		public LatencyHistogram getLatency(Operation operation) {
+			return latencies[operation.ordinal()];
+		}
+		
+		/**
+		 * public void reset()
+		 *
+		 * zeroes all the counters and histograms
+		 */
+		public void reset() {
+			promotions = 0;
+			demotions = 0;
+			rotations = 0;
+			doubleRotations = 0;
+			searches = 0;
+			searchPathLength = 0;
+			maxSearchPath = 0;
+			joinRankGap = 0;
+			splitRankGap = 0;
+			for (LatencyHistogram histogram : latencies) {
+				histogram.reset();
+			}
+		}
+	}
+	
+	/**
+	 * public static class LatencyHistogram
+	 *
+	 * a histogram of latencies in nanoseconds with one bucket per power of 2,
+	 * recording costs O(1) and never allocates.
+	 */
+	public static class LatencyHistogram {
+		
+		private final long[] buckets = new long[64]; // bucket b counts latencies in [2^b, 2^(b+1))
+		private long count;
+		private long total;
+		private long max;
+		
+		/**
+		 * public void record(long nanos)
+		 *
+		 * complexity: O(1).
+		 */
+		public void record(long nanos) {
+			if (nanos < 1) {
+				nanos = 1;
+			}
+			buckets[63 - Long.numberOfLeadingZeros(nanos)]++;
+			count++;
+			total += nanos;
+			if (nanos > max) {
+				max = nanos;
+			}
+		}
+		
+		public long getCount() {
+			return count;
+		}
+		
+		public long getMax() {
+			return max;
+		}
+		
+		public double getMean() {
+			if (count == 0) {
+				return 0;
+			}
+			return (double) total / count;
+		}
+		
+		/**
+		 * public long percentile(double percentile)
+		 *
+		 * returns the upper bound of the bucket holding the given percentile (0-100), or 0 if nothing was recorded
+		 * complexity: O(1).
+		 */
+		public long percentile(double percentile) {
+			long rank = (long) Math.ceil(count * (percentile / 100.0));
+			long seen = 0;
+			for (int b = 0; b < buckets.length; b++) {
+				seen += buckets[b];
+				if ((seen > 0) && (seen >= rank)) {
+					return (b == 63) ? max : Math.min(max, (1L << (b + 1)) - 1);
+				}
+			}
+			return 0;
+		}
+		
+		/**
+		 * public void add(LatencyHistogram other)
+		 *
+		 * adds the latencies recorded by other, e.g. to merge per-thread histograms
+		 * complexity: O(1).
+		 */
+		public void add(LatencyHistogram other) {
+			for (int b = 0; b < buckets.length; b++) {
+				buckets[b] += other.buckets[b];
+			}
+			count += other.count;
+			total += other.total;
+			max = Math.max(max, other.max);
+		}
+		
+		public void reset() {
+			Arrays.fill(buckets, 0);
+			count = 0;
+			total = 0;
+			max = 0;
+		}
+	}
+
+	/**
+	 * public static class SearchCache
+	 *
+	 * the read-through cache of AVLTree.search: an open addressing table (linear probing, at most half full)
+	 * of int keys and their infos, evicting with the CLOCK approximation of LRU.
+	 * a hit sets the entry's reference bit, and the clock hand clears bits until it finds an entry without one.
+	 * removal shifts the following entries back instead of leaving tombstones.
+	 */
+	public static class SearchCache {
+		
+		private final int[] keys;
+		private final String[] infos; // null marks an empty slot
+		private final boolean[] referenced;
+		private final int capacity;
+		private final int mask;
+		private int size;
+		private int hand; // the next slot the clock looks at
+		private long hits;
+		private long misses;
+		
+		public SearchCache(int capacity) { // Constructor
+			if (capacity <= 0) {
+				throw new IllegalArgumentException("capacity must be positive, got " + capacity);
+			}
+			int slots = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 2; // a power of 2 >= 2 * capacity
+			this.keys = new int[slots];
+			this.infos = new String[slots];
+			this.referenced = new boolean[slots];
+			this.capacity = capacity;
+			this.mask = slots - 1;
+		}
+		
+		/**
+		 * private int slot(int key)
+		 *
+		 * the home slot of key (Fibonacci hashing)
+		 * complexity: O(1).
+		 */
+		private int slot(int key) {
+			return (key * 0x9E3779B9) >>> (Integer.numberOfLeadingZeros(mask)) & mask;
+		}
+		
+		/**
+		 * private int find(int key)
+		 *
+		 * returns key's slot, or the empty slot ending its probe sequence if it is not cached
+		 * complexity: O(1) expected.
+		 */
+		private int find(int key) {
+			int i = slot(key);
+			while ((infos[i] != null) && (keys[i] != key)) {
+				i = (i + 1) & mask;
+			}
+			return i;
+		}
+		
+		/**
+		 * public String get(int key)
+		 *
+		 * returns key's cached info, or null on a miss
+		 * complexity: O(1) expected.
+		 */
+		public String get(int key) {
+			int i = find(key);
+			if (infos[i] == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+			referenced[i] = true;
+			return infos[i];
+		}
+		
+		/**
+		 * public void put(int key, String info)
+		 *
+		 * caches key's info (not null), evicting an entry if the cache is full
+		 * complexity: O(1) amortized.
+		 */
+		public void put(int key, String info) {
+			int i = find(key);
+			if (infos[i] != null) {
+				infos[i] = info;
+				return;
+			}
+			if (size == capacity) {
+				evict();
+				i = find(key); // eviction may have shifted key's probe sequence
+			}
+			keys[i] = key;
+			infos[i] = info;
+			referenced[i] = false; // a new entry survives one sweep only if it is hit again
+			size++;
+		}
+		
+		/**
+		 * public void remove(int key)
+		 *
+		 * complexity: O(1) expected.
+		 */
+		public void remove(int key) {
+			int i = find(key);
+			if (infos[i] != null) {
+				removeSlot(i);
+			}
+		}
+		
+		/**
+		 * private void evict()
+		 *
+		 * advances the clock hand to the first entry without a reference bit, clearing the bits it passes,
+		 * and removes that entry
+		 * complexity: O(1) amortized.
+		 */
+		private void evict() {
+			while ((infos[hand] == null) || referenced[hand]) {
+				referenced[hand] = false;
+				hand = (hand + 1) & mask;
+			}
+			removeSlot(hand);
+		}
+		
+		/**
+		 * private void removeSlot(int i)
+		 *
+		 * empties slot i and shifts back every following entry of the run that would no longer be found
+		 * complexity: O(1) expected.
+		 */
+		private void removeSlot(int i) {
+			int hole = i;
+			int j = (i + 1) & mask;
+			while (infos[j] != null) {
+				int home = slot(keys[j]);
+				if (((j - home) & mask) >= ((j - hole) & mask)) { // home is not cyclically in (hole, j]
+					keys[hole] = keys[j];
+					infos[hole] = infos[j];
+					referenced[hole] = referenced[j];
+					hole = j;
+				}
+				j = (j + 1) & mask;
+			}
+			infos[hole] = null;
+			referenced[hole] = false;
+			size--;
+		}
+		
+		/**
+		 * public void clear()
+		 *
+		 * empties the cache, the hit and miss counts are kept
+		 * complexity: O(capacity).
+		 */
+		public void clear() {
+			Arrays.fill(infos, null);
+			Arrays.fill(referenced, false);
+			size = 0;
+			hand = 0;
+		}
+		
+		public int size() {
+			return size;
+		}
+		
+		public int getCapacity() {
+			return capacity;
+		}
+		
+		public long getHits() {
+			return hits;
+		}
+		
+		public long getMisses() {
+			return misses;
+		}
+		
+		/**
+		 * public double getHitRate()
+		 *
+		 * returns hits / (hits + misses), or 0 before the first lookup
+		 * complexity: O(1).
+		 */
+		public double getHitRate() {
+			long lookups = hits + misses;
+			return (lookups == 0) ? 0 : (double) hits / lookups;
+		}
+		
+		public void resetCounts() {
+			hits = 0;
+			misses = 0;
+		}
+	}
+
+	/**
+	 * public static class ChangeLog
+	 *
+	 * A bounded ring of the last 'capacity' changes published by an AVLTree (see setChangeLog),
+	 * numbered by consecutive sequence numbers from 0, for mirrors that apply deltas.
+	 * a change is (sequence, operation, key, info, weight):
+	 * INSERT carries the item; DELETE the key; SPLIT the split key, after which the tree is empty
+	 * (a mirror runs the same split to get both halves); JOIN the item x, after which the tree also
+	 * holds the joined tree (a mirror of that tree joins it the same way).
+	 * consumers tail the ring through cursors. while any cursor is open the writer waits rather than
+	 * overwrite a change some cursor has not read, up to maxWaitMillis (DEFAULT_MAX_WAIT_MILLIS unless given,
+	 * WAIT_FOREVER to block the writer for as long as a consumer lags); after that the cursors still
+	 * behind are dropped, and their next read throws IllegalStateException so their mirror resynchronizes.
+	 * without cursors, the oldest changes are overwritten.
+	 * all methods are synchronized on the log.
+	 */
+	public static class ChangeLog {
+		
+		public static final long DEFAULT_MAX_WAIT_MILLIS = 1000; // a stalled consumer holds up the writer at most 1s per change
+		public static final long WAIT_FOREVER = Long.MAX_VALUE; // the writer waits for its consumers without limit
+		
+		private final Change[] ring; // change s is at s & mask while it is retained
+		private final int mask;
+		private final long maxWaitNanos;
+		private final List<Cursor> cursors = new ArrayList<>();
+		private long next; // the sequence of the next change
+		private long lapped; // cursors dropped for falling behind
+		
+		public ChangeLog(int capacity) { // Constructor of a log whose writer waits up to DEFAULT_MAX_WAIT_MILLIS
+			this(capacity, DEFAULT_MAX_WAIT_MILLIS);
+		}
+		
+		public ChangeLog(int capacity, long maxWaitMillis) { // Constructor, maxWaitMillis may be WAIT_FOREVER
+			if ((capacity <= 0) || (maxWaitMillis < 0)) {
+				throw new IllegalArgumentException("capacity must be positive and maxWaitMillis not negative, got " + capacity + ", " + maxWaitMillis);
+			}
+			int slots = Integer.highestOneBit(capacity);
+			if (slots < capacity) {
+				slots <<= 1;
+			}
+			this.ring = new Change[slots];
+			this.mask = slots - 1;
+			this.maxWaitNanos = (maxWaitMillis >= WAIT_FOREVER / 1000000) ? Long.MAX_VALUE : maxWaitMillis * 1000000;
+		}
+		
+		/**
+		 * public synchronized long getNextSequence()
+		 *
+		 * returns the sequence number the next change will get
+		 * complexity: O(1).
+		 */
+		public synchronized long getNextSequence() {
+			return next;
+		}
+		
+		/**
+		 * public synchronized long getFirstSequence()
+		 *
+		 * returns the sequence number of the oldest change still in the ring
+		 * complexity: O(1).
+		 */
+		public synchronized long getFirstSequence() {
+			return Math.max(0, next - ring.length);
+		}
+		
+		public synchronized long getLapped() {
+			return lapped;
+		}
+		
+		/**
+		 * synchronized void publish(Operation operation, int key, String info, long weight)
+		 *
+		 * appends a change, first waiting (up to maxWaitMillis) for the slowest cursor if the ring is full.
+		 * an interrupt ends the wait early and is kept for the caller.
+		 * complexity: O(cursors) unless it waits.
+		 */
+		synchronized void publish(Operation operation, int key, String info, long weight) {
+			long deadline = System.nanoTime() + maxWaitNanos;
+			boolean interrupted = false;
+			while (!cursors.isEmpty() && (next - slowest() >= ring.length)) {
+				long left = (maxWaitNanos == Long.MAX_VALUE) ? Long.MAX_VALUE : deadline - System.nanoTime();
+				if ((left <= 0) || interrupted) { // drop the cursors still holding the oldest slot
+					lap(next - ring.length + 1);
+					break;
+				}
+				try {
+					if (left == Long.MAX_VALUE) {
+						wait();
+					}
+					else {
+						wait(Math.max(1, left / 1000000));
+					}
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			ring[(int) (next & mask)] = new Change(next, operation, key, info, weight);
+			next++;
+			notifyAll();
+		}
+		
+		private long slowest() {
+			long slowest = Long.MAX_VALUE;
+			for (Cursor cursor : cursors) {
+				slowest = Math.min(slowest, cursor.position);
+			}
+			return slowest;
+		}
+		
+		/**
+		 * private void lap(long first)
+		 *
+		 * drops the cursors whose next change is before 'first'
+		 * complexity: O(cursors).
+		 */
+		private void lap(long first) {
+			for (int i = cursors.size() - 1; i >= 0; i--) {
+				if (cursors.get(i).position < first) {
+					cursors.remove(i).lapped = true;
+					lapped++;
+				}
+			}
+		}
+		
+		/**
+		 * public synchronized Cursor tail(long sequence)
+		 *
+		 * opens a cursor that reads the changes from 'sequence' on: getNextSequence() for the changes
+		 * from now on, or the sequence after the last change a mirror applied to catch up.
+		 * throws IllegalArgumentException if the change 'sequence' is no longer (or not yet) in the ring.
+		 * complexity: O(1).
+		 */
+		public synchronized Cursor tail(long sequence) {
+			if ((sequence < getFirstSequence()) || (sequence > next)) {
+				throw new IllegalArgumentException("sequence " + sequence + " is not in " + getFirstSequence() + ".." + next);
+			}
+			Cursor cursor = new Cursor(sequence);
+			cursors.add(cursor);
+			return cursor;
+		}
+		
+		/**
+		 * public static final class Change
+		 *
+		 * one published change, see ChangeLog
+		 */
+		public static final class Change {
+			private final long sequence;
+			private final Operation operation;
+			private final int key;
+			private final String info; // null for DELETE and SPLIT
+			private final long weight;
+			
+			private Change(long sequence, Operation operation, int key, String info, long weight) {
+				this.sequence = sequence;
+				this.operation = operation;
+				this.key = key;
+				this.info = info;
+				this.weight = weight;
+			}
+			
+			public long getSequence() {
+				return sequence;
+			}
+			
+			public Operation getOperation() {
+				return operation;
+			}
+			
+			public int getKey() {
+				return key;
+			}
+			
+			public String getInfo() {
+				return info;
+			}
+			
+			public long getWeight() {
+				return weight;
+			}
+			
+			public String toString() {
+				return sequence + ":" + operation + "(" + key + ((info == null) ? "" : ", " + info) + ")";
+			}
+		}
+		
+		/**
+		 * public final class Cursor
+		 *
+		 * a consumer's position in the log, for one thread. reading a change frees its slot for the writer.
+		 */
+		public final class Cursor implements AutoCloseable {
+			
+			private long position; // the sequence of the next change to read
+			private boolean lapped;
+			private boolean closed;
+			
+			private Cursor(long position) {
+				this.position = position;
+			}
+			
+			/**
+			 * public long getPosition()
+			 *
+			 * returns the sequence of the next change this cursor reads
+			 */
+			public long getPosition() {
+				synchronized (ChangeLog.this) {
+					return position;
+				}
+			}
+			
+			/**
+			 * public Change poll()
+			 *
+			 * returns the next change, or null if the cursor has read every published change.
+			 * throws IllegalStateException if the cursor was dropped for falling behind.
+			 * complexity: O(1).
+			 */
+			public Change poll() {
+				synchronized (ChangeLog.this) {
+					checkOpen();
+					if (position == next) {
+						return null;
+					}
+					Change change = ring[(int) (position & mask)];
+					position++;
+					ChangeLog.this.notifyAll(); // the writer may be waiting for this slot
+					return change;
+				}
+			}
+			
+			/**
+			 * public Change take()
+			 *
+			 * returns the next change, waiting for it to be published.
+			 * throws IllegalStateException if the cursor was dropped for falling behind or closed.
+			 */
+			public Change take() throws InterruptedException {
+				synchronized (ChangeLog.this) {
+					while ((position == next) && !lapped && !closed) {
+						ChangeLog.this.wait();
+					}
+					return poll();
+				}
+			}
+			
+			/**
+			 * public int drain(List<Change> changes, int max)
+			 *
+			 * appends up to 'max' changes that are already published to 'changes', and returns how many
+			 * complexity: O(max).
+			 */
+			public int drain(List<Change> changes, int max) {
+				synchronized (ChangeLog.this) {
+					checkOpen();
+					int count = (int) Math.min(max, next - position);
+					for (int i = 0; i < count; i++) {
+						changes.add(ring[(int) (position & mask)]);
+						position++;
+					}
+					if (count > 0) {
+						ChangeLog.this.notifyAll();
+					}
+					return count;
+				}
+			}
+			
+			private void checkOpen() {
+				if (lapped) {
+					throw new IllegalStateException("cursor fell behind the change log at " + position + ", the mirror must resynchronize");
+				}
+				if (closed) {
+					throw new IllegalStateException("cursor is closed");
+				}
+			}
+			
+			/**
+			 * public void close()
+			 *
+			 * detaches the cursor, the writer no longer waits for it
+			 */
+			public void close() {
+				synchronized (ChangeLog.this) {
+					if (!closed) {
+						closed = true;
+						cursors.remove(this);
+						ChangeLog.this.notifyAll();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * private static class ExpiryHeap
+	 *
+	 * the binary min-heap of (deadline, key) entries behind AVLTree.expire, in two parallel arrays
+	 */
+	private static class ExpiryHeap {
+		
+		private long[] deadlines = new long[16];
+		private int[] keys = new int[16];
+		private int size;
+		
+		public int size() {
+			return this.size;
+		}
+		
+		public long peekDeadline() {
+			return deadlines[0];
+		}
+		
+		public int peekKey() {
+			return keys[0];
+		}
+		
+		/**
+		 * public void push(long deadline, int key)
+		 *
+		 * complexity: O(log size) amortized.
+		 */
+		public void push(long deadline, int key) {
+			if (size == deadlines.length) {
+				deadlines = Arrays.copyOf(deadlines, size * 2);
+				keys = Arrays.copyOf(keys, size * 2);
+			}
+			int i = size++;
+			while ((i > 0) && (deadlines[(i - 1) >> 1] > deadline)) { // sift the hole up
+				int parent = (i - 1) >> 1;
+				deadlines[i] = deadlines[parent];
+				keys[i] = keys[parent];
+				i = parent;
+			}
+			deadlines[i] = deadline;
+			keys[i] = key;
+		}
+		
+		/**
+		 * public void pop()
+		 *
+		 * removes the entry with the earliest deadline
+		 * complexity: O(log size).
+		 */
+		public void pop() {
+			size--;
+			if (size > 0) {
+				siftDown(0, deadlines[size], keys[size]);
+			}
+		}
+		
+		private void siftDown(int i, long deadline, int key) {
+			while (2 * i + 1 < size) {
+				int child = 2 * i + 1;
+				if ((child + 1 < size) && (deadlines[child + 1] < deadlines[child])) {
+					child++;
+				}
+				if (deadlines[child] >= deadline) {
+					break;
+				}
+				deadlines[i] = deadlines[child];
+				keys[i] = keys[child];
+				i = child;
+			}
+			deadlines[i] = deadline;
+			keys[i] = key;
+		}
+		
+		/**
+		 * public void retain(EntryFilter filter)
+		 *
+		 * drops the entries the filter rejects and restores the heap order bottom up
+		 * complexity: O(size) plus the filter calls.
+		 */
+		public void retain(EntryFilter filter) {
+			int kept = 0;
+			for (int i = 0; i < size; i++) {
+				if (filter.keep(keys[i], deadlines[i])) {
+					deadlines[kept] = deadlines[i];
+					keys[kept] = keys[i];
+					kept++;
+				}
+			}
+			size = kept;
+			for (int i = (size >> 1) - 1; i >= 0; i--) {
+				siftDown(i, deadlines[i], keys[i]);
+			}
+		}
+		
+		private interface EntryFilter {
+			boolean keep(int key, long deadline);
+		}
+	}
+
+	/**
+	 * public static class FrozenAVLTree
+	 *
+	 * A read-only snapshot of an AVLTree, returned by AVLTree.freeze().
+	 * the search tree is implicit: slot 1 is the root and slot j's children are slots 2j and 2j+1
+	 * (Eytzinger order), so the top levels of every search share a few cache lines and a descent needs
+	 * no pointers. each slot packs a key with its rank, infos and sorted keys are kept by rank for
+	 * select and range scans.
+	 * items are addressed by rank: i = 0 is the smallest key.
+	 */
+	public static class FrozenAVLTree {
+		
+		private final long[] layout; // slot j (1..n) holds key << 32 | rank, slot 0 is unused
+		private final int[] keys; // by rank
+		private final String[] infos; // by rank
+		
+		/**
+		 * FrozenAVLTree(int[] keys, String[] infos)
+		 *
+		 * keys must be strictly increasing, the arrays are owned by the snapshot
+		 */
+		FrozenAVLTree(int[] keys, String[] infos) { // Constructor
+			this.keys = keys;
+			this.infos = infos;
+			this.layout = new long[keys.length + 1];
+			fill(1, 0);
+		}
+		
+		/**
+		 * private int fill(int slot, int rank)
+		 *
+		 * lays out the subtree of 'slot' in order, starting with the key of the given rank
+		 * returns the rank following the subtree
+		 * complexity: O(size of the subtree).
+		 */
+		private int fill(int slot, int rank) {
+			if (slot >= layout.length) {
+				return rank;
+			}
+			rank = fill(2 * slot, rank);
+			layout[slot] = ((long) keys[rank] << 32) | rank;
+			return fill(2 * slot + 1, rank + 1);
+		}
+		
+		public int size() {
+			return keys.length;
+		}
+		
+		/**
+		 * public int getKey(int i)
+		 *
+		 * returns the i'th smallest key (select), 0 <= i < size()
+		 * complexity: O(1).
+		 */
+		public int getKey(int i) {
+			return keys[i];
+		}
+		
+		/**
+		 * public String getInfo(int i)
+		 *
+		 * returns the info of the i'th smallest key, 0 <= i < size()
+		 * complexity: O(1).
+		 */
+		public String getInfo(int i) {
+			return infos[i];
+		}
+		
+		/**
+		 * public int ceiling(int k)
+		 *
+		 * returns the rank of the smallest key >= k, or size() if there is none.
+		 * the descent always runs to the bottom and chooses each child with a comparison result
+		 * instead of a branch, then drops the trailing right turns to reach the last left turn.
+		 * complexity: O(logn).
+		 */
+		public int ceiling(int k) {
+			int n = keys.length;
+			int slot = 1;
+			while (slot <= n) {
+				slot = 2 * slot + (((int) (layout[slot] >> 32) < k) ? 1 : 0);
+			}
+			slot >>>= Integer.numberOfTrailingZeros(~slot) + 1;
+			return (slot == 0) ? n : (int) layout[slot];
+		}
+		
+		/**
+		 * public int floor(int k)
+		 *
+		 * returns the rank of the largest key <= k, or -1 if there is none
+		 * complexity: O(logn).
+		 */
+		public int floor(int k) {
+			int i = ceiling(k);
+			return ((i < keys.length) && (keys[i] == k)) ? i : i - 1;
+		}
+		
+		/**
+		 * public String search(int k)
+		 *
+		 * returns the info of key k, or null if k is not in the snapshot
+		 * complexity: O(logn).
+		 */
+		public String search(int k) {
+			int i = ceiling(k);
+			return ((i < keys.length) && (keys[i] == k)) ? infos[i] : null;
+		}
+		
+		/**
+		 * public int[] keysToArray(int lo, int hi)
+		 *
+		 * returns a sorted array of the keys k with lo <= k <= hi
+		 * complexity: O(logn + k) for k keys in the range.
+		 */
+		public int[] keysToArray(int lo, int hi) {
+			if (lo > hi) {
+				return new int[0];
+			}
+			return Arrays.copyOfRange(keys, ceiling(lo), floor(hi) + 1);
+		}
+		
+		/**
+		 * public String[] infoToArray(int lo, int hi)
+		 *
+		 * returns the infos of the keys k with lo <= k <= hi, sorted by key
+		 * complexity: O(logn + k) for k keys in the range.
+		 */
+		public String[] infoToArray(int lo, int hi) {
+			if (lo > hi) {
+				return new String[0];
+			}
+			return Arrays.copyOfRange(infos, ceiling(lo), floor(hi) + 1);
+		}
+	}
+
+	/**
+	 * public static class TreeStats
+	 *
+	 * The shape of an AVLTree, returned by AVLTree.stats() and AVLTree.sampledStats(samples, seed).
+	 * depth counts the edges from the root (the root's depth is 0).
+	 * byte estimates assume a 64-bit JVM with compressed references (12 byte headers, 4 byte references).
+	 */
+	public static class TreeStats {
+		
+		private static final int MAX_WALK = 64; // deeper than any AVL tree, stops walks over a tree being modified
+		private static final int HEADER_BYTES = 12;
+		private static final int REFERENCE_BYTES = 4;
+		private static final long NODE_BYTES = estimateNodeBytes();
+		
+		private final boolean sampled;
+		private int height = -1;
+		private long nodeCount;
+		private long depthSum;
+		private long depthSamples;
+		private int maxDepth = -1;
+		private long evenNodes; // 1,1 nodes
+		private long unevenNodes; // 1,2 and 2,1 nodes
+		private long wideNodes; // 2,2 nodes, legal only in a weak tree
+		private long invalidNodes; // any other rank differences
+		
+		private TreeStats(boolean sampled) {
+			this.sampled = sampled;
+		}
+		
+		private void add(ShapeCount count) {
+			nodeCount = count.nodes;
+			depthSamples = count.nodes;
+			depthSum = count.depthSum;
+			maxDepth = count.maxDepth;
+			evenNodes = count.evenNodes;
+			unevenNodes = count.unevenNodes;
+			wideNodes = count.wideNodes;
+			invalidNodes = count.invalidNodes;
+		}
+		
+		/**
+		 * returns true if the numbers were estimated from a sample of the nodes
+		 */
+		public boolean isSampled() {
+			return sampled;
+		}
+		
+		public int getHeight() {
+			return height;
+		}
+		
+		public long getNodeCount() {
+			return nodeCount;
+		}
+		
+		/**
+		 * returns the average depth of a node, the cost of a successful search
+		 */
+		public double getAverageDepth() {
+			if (depthSamples == 0) {
+				return 0;
+			}
+			return (double) depthSum / depthSamples;
+		}
+		
+		/**
+		 * returns the maximal depth of a node (of a sampled node in a sampled report)
+		 */
+		public int getMaxDepth() {
+			return maxDepth;
+		}
+		
+		public long getEvenNodes() {
+			return evenNodes;
+		}
+		
+		public long getUnevenNodes() {
+			return unevenNodes;
+		}
+		
+		/**
+		 * returns the number of 2,2 nodes, 0 in a valid AVL tree, only internal nodes in a valid weak tree
+		 */
+		public long getWideNodes() {
+			return wideNodes;
+		}
+		
+		/**
+		 * returns the number of nodes breaking the AVL rank rule other than 2,2 nodes, 0 in a valid tree
+		 */
+		public long getInvalidNodes() {
+			return invalidNodes;
+		}
+		
+		/**
+		 * returns the estimated size in bytes of one AVLNode, real and virtual nodes share the class
+		 */
+		public long getBytesPerNode() {
+			return NODE_BYTES;
+		}
+		
+		/**
+		 * returns the estimated bytes of the real nodes and of the n+1 virtual leaves hanging from them
+		 */
+		public long getEstimatedBytes() {
+			if (nodeCount == 0) {
+				return 0;
+			}
+			return (2 * nodeCount + 1) * NODE_BYTES;
+		}
+		
+		/**
+		 * returns the estimated bytes of the tree divided by its real nodes
+		 */
+		public double getBytesPerEntry() {
+			if (nodeCount == 0) {
+				return 0;
+			}
+			return (double) getEstimatedBytes() / nodeCount;
+		}
+		
+		public String toString() {
+			return "TreeStats[" + (sampled ? "sampled, " : "") + "height=" + height + ", nodes=" + nodeCount
+					+ ", averageDepth=" + getAverageDepth() + ", maxDepth=" + maxDepth
+					+ ", 1-1=" + evenNodes + ", 1-2=" + unevenNodes + ", 2-2=" + wideNodes + ", invalid=" + invalidNodes
+					+ ", bytesPerNode=" + NODE_BYTES + ", estimatedBytes=" + getEstimatedBytes() + "]";
+		}
+		
+		/**
+		 * sums the sizes of the instance fields of AVLNode (including its reference to the tree)
+		 * over a 12 byte header, rounded up to 8 bytes
+		 */
+		private static long estimateNodeBytes() {
+			long bytes = HEADER_BYTES;
+			for (java.lang.reflect.Field field : AVLNode.class.getDeclaredFields()) {
+				if (java.lang.reflect.Modifier.isStatic(field.getModifiers())) {
+					continue;
+				}
+				Class<?> type = field.getType();
+				if ((type == long.class) || (type == double.class)) {
+					bytes += 8;
+				}
+				else if ((type == int.class) || (type == float.class)) {
+					bytes += 4;
+				}
+				else if ((type == short.class) || (type == char.class)) {
+					bytes += 2;
+				}
+				else if ((type == byte.class) || (type == boolean.class)) {
+					bytes += 1;
+				}
+				else {
+					bytes += REFERENCE_BYTES;
+				}
+			}
+			return (bytes + 7) / 8 * 8;
+		}
+	}
+	
+	/**
+	 * private static class ShapeCount
+	 *
+	 * the shape numbers of a set of nodes, summed by stats() and sampledStats()
+	 */
+	private static class ShapeCount {
+		private long nodes;
+		private long depthSum;
+		private int maxDepth = -1;
+		private long evenNodes;
+		private long unevenNodes;
+		private long wideNodes;
+		private long invalidNodes;
+		
+		private void addNode(IAVLNode node, int depth) {
+			nodes++;
+			depthSum += depth;
+			maxDepth = Math.max(maxDepth, depth);
+			int left = node.getRank() - rank(node.getLeft());
+			int right = node.getRank() - rank(node.getRight());
+			if ((left == 1) && (right == 1)) {
+				evenNodes++;
+			}
+			else if (((left == 1) && (right == 2)) || ((left == 2) && (right == 1))) {
+				unevenNodes++;
+			}
+			else if ((left == 2) && (right == 2)) {
+				wideNodes++;
+			}
+			else {
+				invalidNodes++;
+			}
+		}
+		
+		private static int rank(IAVLNode child) {
+			return (child == null) ? -1 : child.getRank(); // null only in a tree being modified
+		}
+		
+		private void add(ShapeCount other) {
+			nodes += other.nodes;
+			depthSum += other.depthSum;
+			maxDepth = Math.max(maxDepth, other.maxDepth);
+			evenNodes += other.evenNodes;
+			unevenNodes += other.unevenNodes;
+			wideNodes += other.wideNodes;
+			invalidNodes += other.invalidNodes;
+		}
+	}
+	
+	/**
+	 * private static class ShapeTask
+	 *
+	 * counts the shape of the subtree of 'node', forking the subtrees larger than THRESHOLD.
+	 * a task stops at depth MAX_WALK and after as many nodes as its subtree's size, so a walk over
+	 * a tree being modified ends even if it meets a half rotated, temporarily shared subtree.
+	 */
+	private static class ShapeTask extends RecursiveTask<ShapeCount> {
+		
+		private static final long serialVersionUID = 1L;
+		private static final int THRESHOLD = 1 << 13;
+		private final IAVLNode node;
+		private final int depth;
+		
+		private ShapeTask(IAVLNode node, int depth) {
+			this.node = node;
+			this.depth = depth;
+		}
+		
+		protected ShapeCount compute() {
+			ShapeCount count = new ShapeCount();
+			if ((node == null) || !node.isRealNode() || (depth > TreeStats.MAX_WALK)) {
+				return count;
+			}
+			int size = node.getSize();
+			if (size <= THRESHOLD) {
+				count(node, depth, count, size);
+				return count;
+			}
+			ShapeTask left = new ShapeTask(node.getLeft(), depth + 1);
+			left.fork();
+			count.add(new ShapeTask(node.getRight(), depth + 1).compute());
+			count.add(left.join());
+			count.addNode(node, depth);
+			return count;
+		}
+		
+		private static void count(IAVLNode node, int depth, ShapeCount count, int limit) {
+			if ((node == null) || !node.isRealNode() || (depth > TreeStats.MAX_WALK) || (count.nodes >= limit)) {
+				return;
+			}
+			count.addNode(node, depth);
+			count(node.getLeft(), depth + 1, count, limit);
+			count(node.getRight(), depth + 1, count, limit);
+		}
+	}
+
+	/**
+	 * public static class IntervalTree
+	 *
+	 * An AVLTree of closed intervals [start, end] keyed by their start. a node holds every interval
+	 * of its start (in the order they were inserted), and its weight is their maximal end.
+	 * every subtree keeps the maximal end in it (the MAX_WEIGHTS aggregator), maintained by update()
+	 * through the usual insert, delete and rotation code, so overlap queries skip every subtree ending before them.
+	 * size() counts the distinct starts, delete(k) removes every interval starting at k, and the info of
+	 * a node (search, infoToArray) is that of the first interval inserted at its start.
+	 */
+	public static class IntervalTree extends AVLTree {
+		
+		public IntervalTree() { // Constructor
+			super(Aggregators.MAX_WEIGHTS);
+		}
+		
+		/**
+		 * public int insert(int start, int end, String info)
+		 *
+		 * inserts the interval [start, end] with info 'info'
+		 * returns as AVLTree.insert for a new start, or 0 if the interval joins the intervals of an existing start
+		 * complexity: O(logn).
+		 */
+		public int insert(int start, int end, String info) {
+			if (end < start) {
+				throw new IllegalArgumentException("interval [" + start + ", " + end + "] ends before it starts");
+			}
+			IntervalNode node = find(start);
+			if (node == null) {
+				return super.insert(start, info, end);
+			}
+			if (node.intervals == null) { // the second interval of the start
+				node.intervals = new ArrayList<>();
+				node.intervals.add(new Interval(start, getEnd(node), node.getValue()));
+			}
+			node.intervals.add(new Interval(start, end, info));
+			if (end > getEnd(node)) {
+				super.setWeight(start, end);
+			}
+			return 0;
+		}
+		
+		/**
+		 * public int insert(int k, String i)
+		 *
+		 * inserts the single point interval [k, k]
+		 * complexity: O(logn).
+		 */
+		public int insert(int k, String i) {
+			return insert(k, k, i);
+		}
+		
+		/**
+		 * public int insert(int k, String i, long weight)
+		 *
+		 * inserts the interval [k, weight], the weight of an item is the end of its interval
+		 * complexity: O(logn).
+		 */
+		public int insert(int k, String i, long weight) {
+			return insert(k, toEnd(k, weight), i);
+		}
+		
+		/**
+		 * public int append(int k, String i)
+		 *
+		 * inserts the point interval [k, k], k must be larger than every start in the tree
+		 * returns as AVLTree.append, throws IllegalArgumentException if k is not larger than the maximal start.
+		 * complexity: O(logn).
+		 */
+		public int append(int k, String i) {
+			if (!empty() && (k <= getMax().getKey())) {
+				throw new IllegalArgumentException("appended start " + k + " is not larger than the maximal start " + getMax().getKey());
+			}
+			return insert(k, k, i);
+		}
+		
+		/**
+		 * public int fingerInsert(int k, String i)
+		 *
+		 * inserts the point interval [k, k] as insert(k, i), a start that is already in the tree gets another interval
+		 * complexity: O(logn).
+		 */
+		public int fingerInsert(int k, String i) {
+			return insert(k, k, i);
+		}
+		
+		/**
+		 * public int insertExpiring(int k, String i, long deadline)
+		 *
+		 * not supported, intervals do not expire
+		 */
+		public int insertExpiring(int k, String i, long deadline) {
+			throw new UnsupportedOperationException("intervals do not expire");
+		}
+		
+		/**
+		 * public boolean setDeadline(int k, long deadline)
+		 *
+		 * not supported, intervals do not expire
+		 */
+		public boolean setDeadline(int k, long deadline) {
+			throw new UnsupportedOperationException("intervals do not expire");
+		}
+		
+		/**
+		 * public boolean setWeight(int k, long weight)
+		 *
+		 * not supported, the weight of a start is the maximal end of its intervals.
+		 * delete(start, end) and insert(start, end, info) move the end of an interval.
+		 */
+		public boolean setWeight(int k, long weight) {
+			throw new UnsupportedOperationException("the weight of a start is the maximal end of its intervals");
+		}
+		
+		/**
+		 * public void setNodePool(int capacity)
+		 *
+		 * not supported, the nodes of an interval tree keep their intervals
+		 */
+		public void setNodePool(int capacity) {
+			throw new UnsupportedOperationException("the nodes of an interval tree are not pooled");
+		}
+		
+		/**
+		 * public boolean delete(int start, int end)
+		 *
+		 * deletes one interval [start, end], if it is there. the start is deleted with its last interval.
+		 * returns false if there is no such interval
+		 * complexity: O(logn + m) for the m intervals of the start.
+		 */
+		public boolean delete(int start, int end) {
+			IntervalNode node = find(start);
+			if (node == null) {
+				return false;
+			}
+			if (node.intervals == null) { // a single interval
+				if (getEnd(node) != end) {
+					return false;
+				}
+				delete(start);
+				return true;
+			}
+			int maxEnd = Integer.MIN_VALUE;
+			boolean found = false;
+			Iterator<Interval> iterator = node.intervals.iterator();
+			while (iterator.hasNext()) {
+				Interval interval = iterator.next();
+				if (!found && (interval.getEnd() == end)) {
+					iterator.remove();
+					found = true;
+				}
+				else {
+					maxEnd = Math.max(maxEnd, interval.getEnd());
+				}
+			}
+			if (node.intervals.isEmpty()) {
+				delete(start);
+			}
+			else if (found && (maxEnd != getEnd(node))) {
+				super.setWeight(start, maxEnd);
+			}
+			return found;
+		}
+		
+		/**
+		 * public void bulkLoad(int[] starts, int[] ends, String[] infos)
+		 *
+		 * replaces the contents of the tree with the given intervals, starts must be strictly increasing
+		 * complexity: O(n).
+		 */
+		public void bulkLoad(int[] starts, int[] ends, String[] infos) {
+			long[] weights = new long[ends.length];
+			for (int i = 0; i < ends.length; i++) {
+				weights[i] = ends[i];
+			}
+			bulkLoad(starts, infos, weights);
+		}
+		
+		/**
+		 * public void bulkLoad(int[] keys, String[] infos, long[] weights)
+		 *
+		 * replaces the contents of the tree with the intervals [keys[i], weights[i]], keys must be strictly increasing
+		 * complexity: O(n).
+		 */
+		public void bulkLoad(int[] keys, String[] infos, long[] weights) {
+			if (weights == null) {
+				throw new IllegalArgumentException("the weights are the ends of the intervals");
+			}
+			for (int i = 0; (i < keys.length) && (i < weights.length); i++) {
+				toEnd(keys[i], weights[i]);
+			}
+			super.bulkLoad(keys, infos, weights);
+		}
+		
+		/**
+		 * public int join(IAVLNode x, AVLTree t)
+		 *
+		 * joins t and the interval [x.getKey(), weight of x] with the tree, as AVLTree.join
+		 * precondition: t is an IntervalTree, and those of AVLTree.join
+		 * complexity: as AVLTree.join.
+		 */
+		public int join(IAVLNode x, AVLTree t) {
+			if (!(t instanceof IntervalTree)) {
+				throw new IllegalArgumentException("an interval tree joins interval trees only");
+			}
+			if (!(x instanceof IntervalNode)) {
+				x = new IntervalNode(x.getKey(), x.getValue(), toEnd(x.getKey(), ((AVLNode)x).getWeight()), null);
+			}
+			return super.join(x, t);
+		}
+		
+		/**
+		 * public IntervalTree[] split(int x)
+		 *
+		 * splits the tree as AVLTree.split, every interval starting at x is dropped
+		 * complexity: O(logn).
+		 */
+		public IntervalTree[] split(int x) {
+			AVLTree[] halves = super.split(x);
+			return new IntervalTree[] {(IntervalTree) halves[0], (IntervalTree) halves[1]};
+		}
+		
+		/**
+		 * public IntervalTree extractRange(int lo, int hi)
+		 *
+		 * moves the intervals starting in [lo, hi] into a new tree, as AVLTree.extractRange
+		 * complexity: O(logn).
+		 */
+		public IntervalTree extractRange(int lo, int hi) {
+			return (IntervalTree) super.extractRange(lo, hi);
+		}
+		
+		protected AVLNode createNode(int k, String i, long weight, IAVLNode parent) {
+			return new IntervalNode(k, i, weight, parent);
+		}
+		
+		protected AVLTree createTree() {
+			return new IntervalTree();
+		}
+		
+		/**
+		 * public int getEnd(IAVLNode node)
+		 *
+		 * returns the maximal end of the intervals starting at node.getKey()
+		 * complexity: O(1).
+		 */
+		public int getEnd(IAVLNode node) {
+			return (int) ((AVLNode)node).getWeight();
+		}
+		
+		/**
+		 * public List<Interval> intervalsAt(int start)
+		 *
+		 * returns the intervals starting at 'start' in the order they were inserted, empty if there is none
+		 * complexity: O(logn + m) for the m intervals of the start.
+		 */
+		public List<Interval> intervalsAt(int start) {
+			List<Interval> result = new ArrayList<>();
+			IntervalNode node = find(start);
+			if (node != null) {
+				collectIntervals(node, Integer.MIN_VALUE, result);
+			}
+			return result;
+		}
+		
+		/**
+		 * public List<Interval> stab(int point)
+		 *
+		 * returns the intervals containing 'point', sorted by start
+		 * complexity: O(min(n, (k+1)logn)) for k results.
+		 */
+		public List<Interval> stab(int point) {
+			return overlapping(point, point);
+		}
+		
+		/**
+		 * public List<Interval> overlapping(int lo, int hi)
+		 *
+		 * returns the intervals overlapping [lo, hi] (start <= hi and end >= lo), sorted by start
+		 * complexity: O(min(n, (k+1)logn)) for k results.
+		 */
+		public List<Interval> overlapping(int lo, int hi) {
+			List<Interval> result = new ArrayList<>();
+			if (!empty() && (lo <= hi)) {
+				collectOverlapping(getRoot(), lo, hi, result);
+			}
+			return result;
+		}
+		
+		/**
+		 * private void collectOverlapping(IAVLNode node, int lo, int hi, List<Interval> result)
+		 *
+		 * adds the overlapping intervals of the subtree of 'node' in order,
+		 * a subtree whose maximal end is before lo is skipped,
+		 * and so is a right subtree whose starts are all after hi
+		 */
+		private void collectOverlapping(IAVLNode node, int lo, int hi, List<Interval> result) {
+			while (node.isRealNode() && (((AVLNode)node).getAggregate() >= lo)) {
+				collectOverlapping(node.getLeft(), lo, hi, result);
+				if (node.getKey() > hi) { // node and its right subtree start after hi
+					return;
+				}
+				if (getEnd(node) >= lo) {
+					collectIntervals(node, lo, result);
+				}
+				node = node.getRight();
+			}
+		}
+		
+		private void collectIntervals(IAVLNode node, int lo, List<Interval> result) {
+			List<Interval> intervals = (node instanceof IntervalNode) ? ((IntervalNode)node).intervals : null;
+			if (intervals == null) { // the node is its only interval
+				result.add(new Interval(node.getKey(), getEnd(node), node.getValue()));
+				return;
+			}
+			for (Interval interval : intervals) {
+				if (interval.getEnd() >= lo) {
+					result.add(interval);
+				}
+			}
+		}
+		
+		private IntervalNode find(int start) {
+			IAVLNode node = getRoot();
+			while ((node != null) && node.isRealNode() && (node.getKey() != start)) {
+				node = (start < node.getKey()) ? node.getLeft() : node.getRight();
+			}
+			return ((node == null) || !node.isRealNode()) ? null : (IntervalNode) node;
+		}
+		
+		private static int toEnd(int start, long weight) {
+			if ((weight < start) || (weight > Integer.MAX_VALUE)) {
+				throw new IllegalArgumentException("interval [" + start + ", " + weight + "] ends before it starts or after Integer.MAX_VALUE");
+			}
+			return (int) weight;
+		}
+		
+		/**
+		 * public static final class Interval
+		 *
+		 * an interval [start, end] with its info, as returned by the queries
+		 */
+		public static final class Interval {
+			private final int start;
+			private final int end;
+			private final String info;
+			
+			public Interval(int start, int end, String info) { // Constructor
+				this.start = start;
+				this.end = end;
+				this.info = info;
+			}
+			
+			public int getStart() {
+				return start;
+			}
+			
+			public int getEnd() {
+				return end;
+			}
+			
+			public String getInfo() {
+				return info;
+			}
+			
+			public String toString() {
+				return "[" + start + ", " + end + "]";
+			}
+		}
+		
+		/**
+		 * private class IntervalNode
+		 *
+		 * the node of a start. a start with a single interval keeps it in the node itself
+		 * (key, weight and value), the intervals of a shared start are listed in 'intervals'
+		 */
+		private class IntervalNode extends AVLNode {
+			private List<Interval> intervals; // every interval of the start once a second one was inserted, or null
+			
+			private IntervalNode(int start, String info, long end, IAVLNode parent) {
+				super(start, info, end, parent);
+			}
+		}
+	}
+
+	/**
+	 * public static class ShardedAVLTree
+	 *
+	 * A map with distinct integer keys and info, range-partitioned over several AVLTree shards.
+	 * shard i holds the keys in [lowerBounds[i], lowerBounds[i+1]).
+	 * every shard is guarded by its own monitor, so operations on different shards run in parallel,
+	 * and exports run over the shards in parallel on the common fork-join pool.
+	 * the shards and their bounds are published as an immutable Topology in a volatile field: an operation
+	 * routes its key through the snapshot it read, locks only the target shard, and retries if another
+	 * snapshot was published meanwhile. the shard boundaries move online with the shards' split and join
+	 * while the other shards keep working: splitShard and mergeShards lock the shards they change for
+	 * their O(logn), and publish the new snapshot before unlocking them.
+	 */
+	public static class ShardedAVLTree {
+		
+		private final Object resharding = new Object(); // serializes splitShard, mergeShards and rebalance
+		private volatile Topology topology;
+		
+		/**
+		 * public ShardedAVLTree(int[] boundaries)
+		 *
+		 * creates boundaries.length + 1 empty shards split at the strictly increasing 'boundaries'
+		 */
+		public ShardedAVLTree(int[] boundaries) { // Constructor
+			int[] lowerBounds = new int[boundaries.length + 1];
+			lowerBounds[0] = Integer.MIN_VALUE;
+			for (int i = 0; i < boundaries.length; i++) {
+				if (boundaries[i] <= lowerBounds[i]) {
+					throw new IllegalArgumentException("boundaries must be strictly increasing and above Integer.MIN_VALUE");
+				}
+				lowerBounds[i + 1] = boundaries[i];
+			}
+			AVLTree[] shards = new AVLTree[lowerBounds.length];
+			for (int i = 0; i < shards.length; i++) {
+				shards[i] = new AVLTree();
+			}
+			this.topology = new Topology(shards, lowerBounds);
+		}
+		
+		/**
+		 * public int shardCount()
+		 *
+		 * complexity: O(1).
+		 */
+		public int shardCount() {
+			return topology.shards.length;
+		}
+		
+		/**
+		 * public int[] getBoundaries()
+		 *
+		 * returns the lower bounds of shards 1..shardCount()-1
+		 * complexity: O(number of shards).
+		 */
+		public int[] getBoundaries() {
+			int[] lowerBounds = topology.lowerBounds;
+			return Arrays.copyOfRange(lowerBounds, 1, lowerBounds.length);
+		}
+		
+		/**
+		 * public String search(int k)
+		 *
+		 * returns the info of the item with key k, or null if it is not in the map
+		 * complexity: O(log(number of shards) + log(shard size)).
+		 */
+		public String search(int k) {
+			while (true) {
+				Topology current = topology;
+				int index = current.shardIndex(k);
+				AVLTree shard = current.shards[index];
+				synchronized (shard) {
+					if (current == topology) { // else the shards moved before the lock, route again
+						current.operations[index].increment();
+						return shard.search(k);
+					}
+				}
+			}
+		}
+		
+		/**
+		 * public int insert(int k, String i)
+		 *
+		 * inserts into the shard of k, returns as AVLTree.insert
+		 * complexity: O(log(number of shards) + log(shard size)).
+		 */
+		public int insert(int k, String i) {
+			while (true) {
+				Topology current = topology;
+				int index = current.shardIndex(k);
+				AVLTree shard = current.shards[index];
+				synchronized (shard) {
+					if (current == topology) {
+						current.operations[index].increment();
+						return shard.insert(k, i);
+					}
+				}
+			}
+		}
+		
+		/**
+		 * public int delete(int k)
+		 *
+		 * deletes from the shard of k, returns as AVLTree.delete
+		 * complexity: O(log(number of shards) + log(shard size)).
+		 */
+		public int delete(int k) {
+			while (true) {
+				Topology current = topology;
+				int index = current.shardIndex(k);
+				AVLTree shard = current.shards[index];
+				synchronized (shard) {
+					if (current == topology) {
+						current.operations[index].increment();
+						return shard.delete(k);
+					}
+				}
+			}
+		}
+		
+		/**
+		 * public int size()
+		 *
+		 * sums the shards one at a time, again if the shards moved meanwhile
+		 * complexity: O(number of shards).
+		 */
+		public int size() {
+			while (true) {
+				Topology current = topology;
+				int size = 0;
+				for (AVLTree shard : current.shards) {
+					synchronized (shard) {
+						size += shard.size();
+					}
+				}
+				if (current == topology) {
+					return size;
+				}
+			}
+		}
+		
+		/**
+		 * public int[] keysToArray(int lo, int hi)
+		 *
+		 * Returns a sorted array of the keys in [lo, hi], the shards overlapping the range are scanned in parallel
+		 * and scanned again if the shards moved meanwhile
+		 * complexity: O(log n + k) work.
+		 */
+		public int[] keysToArray(int lo, int hi) {
+			if (lo > hi) {
+				return new int[0];
+			}
+			while (true) {
+				Topology current = topology;
+				int first = current.shardIndex(lo);
+				int last = current.shardIndex(hi);
+				int[][] parts = new int[last - first + 1][];
+				IntStream.rangeClosed(first, last).parallel().forEach(i -> {
+					synchronized (current.shards[i]) {
+						parts[i - first] = current.shards[i].keysToArray(lo, hi);
+					}
+				});
+				if (current != topology) {
+					continue;
+				}
+				int length = 0;
+				for (int[] part : parts) {
+					length += part.length;
+				}
+				int[] result = new int[length];
+				int index = 0;
+				for (int[] part : parts) {
+					System.arraycopy(part, 0, result, index, part.length);
+					index += part.length;
+				}
+				return result;
+			}
+		}
+		
+		/**
+		 * public int[] keysToArray()
+		 *
+		 * Returns a sorted array of all the keys, exported from the shards in parallel
+		 * complexity: O(n) work.
+		 */
+		public int[] keysToArray() {
+			return keysToArray(Integer.MIN_VALUE, Integer.MAX_VALUE);
+		}
+		
+		/**
+		 * public String[] infoToArray()
+		 *
+		 * Returns all the info sorted by key, exported from the shards in parallel
+		 * and again if the shards moved meanwhile
+		 * complexity: O(n) work.
+		 */
+		public String[] infoToArray() {
+			while (true) {
+				Topology current = topology;
+				String[][] parts = new String[current.shards.length][];
+				IntStream.range(0, current.shards.length).parallel().forEach(i -> {
+					synchronized (current.shards[i]) {
+						parts[i] = current.shards[i].infoToArray();
+					}
+				});
+				if (current != topology) {
+					continue;
+				}
+				List<String> result = new ArrayList<>();
+				for (String[] part : parts) {
+					result.addAll(Arrays.asList(part));
+				}
+				return result.toArray(new String[0]);
+			}
+		}
+		
+		/**
+		 * public boolean splitShard(int index)
+		 *
+		 * splits shard 'index' at its median key into two shards, using AVLTree.split
+		 * returns false if the shard has fewer than 2 items
+		 * complexity: O(log(shard size) + number of shards).
+		 */
+		public boolean splitShard(int index) {
+			synchronized (resharding) {
+				Topology current = topology;
+				AVLTree shard = current.shards[index];
+				synchronized (shard) {
+					if (shard.size() < 2) {
+						return false;
+					}
+					IAVLNode median = shard.select(shard.size() / 2); // never the minimum, so both shards are not empty
+					int key = median.getKey();
+					String info = median.getValue();
+					long weight = ((AVLNode)median).getWeight();
+					AVLTree[] halves = shard.split(key);
+					halves[1].insert(key, info, weight);
+					int[] lowerBounds = current.lowerBounds;
+					int[] bounds = new int[lowerBounds.length + 1];
+					System.arraycopy(lowerBounds, 0, bounds, 0, index + 1);
+					bounds[index + 1] = key;
+					System.arraycopy(lowerBounds, index + 1, bounds, index + 2, lowerBounds.length - index - 1);
+					topology = new Topology(insertAt(current.shards, index, halves[0], halves[1]), bounds);
+					return true;
+				}
+			}
+		}
+		
+		/**
+		 * public void mergeShards(int index)
+		 *
+		 * merges shards 'index' and 'index'+1 into one shard, using AVLTree.join
+		 * with the minimum of the larger shard as the joining node
+		 * complexity: O(log(shard size) + number of shards).
+		 */
+		public void mergeShards(int index) {
+			synchronized (resharding) {
+				Topology current = topology;
+				AVLTree smaller = current.shards[index];
+				AVLTree larger = current.shards[index + 1];
+				synchronized (smaller) { // in shard order, as the exports never hold two
+					synchronized (larger) {
+						if (!larger.empty()) {
+							IAVLNode pivot = larger.getMin();
+							int key = pivot.getKey();
+							String info = pivot.getValue();
+							long weight = ((AVLNode)pivot).getWeight();
+							larger.delete(key);
+							smaller.join(smaller.new AVLNode(key, info, weight, null), larger);
+						}
+						AVLTree[] shards = current.shards;
+						AVLTree[] merged = new AVLTree[shards.length - 1];
+						System.arraycopy(shards, 0, merged, 0, index);
+						merged[index] = smaller;
+						System.arraycopy(shards, index + 2, merged, index + 1, shards.length - index - 2);
+						int[] lowerBounds = current.lowerBounds;
+						int[] bounds = new int[lowerBounds.length - 1];
+						System.arraycopy(lowerBounds, 0, bounds, 0, index + 1);
+						System.arraycopy(lowerBounds, index + 2, bounds, index + 1, lowerBounds.length - index - 2);
+						topology = new Topology(merged, bounds);
+					}
+				}
+			}
+		}
+		
+		/**
+		 * public int rebalance(double hotFactor)
+		 *
+		 * splits every shard that received more than hotFactor times the average number of operations
+		 * since the last rebalance, then starts counting again
+		 * returns the number of shards split
+		 * complexity: O(number of shards * (log(shard size) + number of shards)).
+		 */
+		public int rebalance(double hotFactor) {
+			synchronized (resharding) {
+				LongAdder[] operations = topology.operations; // splitShard publishes fresh counters
+				long[] counts = new long[operations.length];
+				long total = 0;
+				for (int i = 0; i < counts.length; i++) {
+					counts[i] = operations[i].sumThenReset();
+					total += counts[i];
+				}
+				double threshold = hotFactor * total / counts.length;
+				int split = 0;
+				for (int i = counts.length - 1; i >= 0; i--) { // from the end, so the indexes of the next ones do not move
+					if ((counts[i] > threshold) && splitShard(i)) {
+						split++;
+					}
+				}
+				return split;
+			}
+		}
+		
+		private static AVLTree[] insertAt(AVLTree[] shards, int index, AVLTree first, AVLTree second) {
+			AVLTree[] result = new AVLTree[shards.length + 1];
+			System.arraycopy(shards, 0, result, 0, index);
+			result[index] = first;
+			result[index + 1] = second;
+			System.arraycopy(shards, index + 1, result, index + 2, shards.length - index - 1);
+			return result;
+		}
+		
+		/**
+		 * the shards and their lower bounds as one snapshot, never changed once published.
+		 * the operation counters are striped LongAdders, so threads hitting one shard do not
+		 * contend on a single counter, nor share its cache line with a neighbouring shard's.
+		 */
+		private static final class Topology {
+			private final AVLTree[] shards;
+			private final int[] lowerBounds; // lowerBounds[0] is Integer.MIN_VALUE
+			private final LongAdder[] operations; // operations per shard since the last rebalance
+			
+			private Topology(AVLTree[] shards, int[] lowerBounds) {
+				this.shards = shards;
+				this.lowerBounds = lowerBounds;
+				this.operations = new LongAdder[shards.length];
+				for (int i = 0; i < shards.length; i++) {
+					operations[i] = new LongAdder();
+				}
+			}
+			
+			/**
+			 * returns the index of the last shard whose lower bound is <= k
+			 * complexity: O(log(number of shards)).
+			 */
+			private int shardIndex(int k) {
+				int low = 0;
+				int high = lowerBounds.length - 1;
+				while (low < high) {
+					int middle = (low + high + 1) >>> 1;
+					if (lowerBounds[middle] <= k) {
+						low = middle;
+					}
+					else {
+						high = middle - 1;
+					}
+				}
+				return low;
+			}
+		}
+	}
+
+	/**
+	 * public static class TreeExecutor
+	 *
+	 * A single-writer front end for an AVLTree shared by many (typically virtual) threads.
+	 * callers enqueue search, insert and delete requests on a lock-free multi-producer queue and
+	 * get a CompletableFuture; one dedicated applier thread drains the queue in batches and runs them
+	 * on the tree in arrival order. no caller ever holds a monitor, so waiting callers
+	 * (CompletableFuture.join) never pin a carrier thread, and the tree needs no locking.
+	 * futures are completed on the applier thread, so dependent stages should be async or short.
+	 */
+	public static class TreeExecutor implements AutoCloseable {
+		
+		private static final int SEARCH = 0;
+		private static final int INSERT = 1;
+		private static final int DELETE = 2;
+		private static final int ROUNDS = 3; // of main, the first is a warm-up
+		private static final int BENCHMARK_KEYS = 1 << 20; // main draws its keys from [0, BENCHMARK_KEYS)
+		
+		private final AVLTree tree;
+		private final int maxBatch;
+		private final ConcurrentLinkedQueue<Request> queue = new ConcurrentLinkedQueue<>();
+		private final Thread applier;
+		private final LatencyHistogram latency = new LatencyHistogram(); // from enqueue to completion, written by the applier only
+		private volatile boolean running = true;
+		private volatile boolean sleeping = false; // the applier is about to park
+		private volatile long batches;
+		private volatile long requests;
+		
+		/**
+		 * public TreeExecutor(AVLTree tree, int maxBatch)
+		 *
+		 * starts the applier thread of 'tree', which applies at most maxBatch requests between two
+		 * checks of the queue. the tree must not be used directly afterwards.
+		 */
+		public TreeExecutor(AVLTree tree, int maxBatch) { // Constructor
+			this.tree = tree;
+			this.maxBatch = maxBatch;
+			this.applier = new Thread(this::applyLoop, "AVLTree-applier");
+			this.applier.setDaemon(true);
+			this.applier.start();
+		}
+		
+		/**
+		 * public CompletableFuture<String> search(int k)
+		 *
+		 * completes with tree.search(k)
+		 */
+		public CompletableFuture<String> search(int k) {
+			Request request = new Request(SEARCH, k, null);
+			submit(request);
+			return request.searchResult;
+		}
+		
+		/**
+		 * public CompletableFuture<Integer> insert(int k, String i)
+		 *
+		 * completes with tree.insert(k, i)
+		 */
+		public CompletableFuture<Integer> insert(int k, String i) {
+			Request request = new Request(INSERT, k, i);
+			submit(request);
+			return request.updateResult;
+		}
+		
+		/**
+		 * public CompletableFuture<Integer> delete(int k)
+		 *
+		 * completes with tree.delete(k)
+		 */
+		public CompletableFuture<Integer> delete(int k) {
+			Request request = new Request(DELETE, k, null);
+			submit(request);
+			return request.updateResult;
+		}
+		
+		/**
+		 * public long getBatches()
+		 *
+		 * returns the number of batches applied so far
+		 */
+		public long getBatches() {
+			return batches;
+		}
+		
+		/**
+		 * public double getAverageBatch()
+		 *
+		 * returns the average number of requests per batch
+		 */
+		public double getAverageBatch() {
+			long count = batches;
+			return (count == 0) ? 0 : (double) requests / count;
+		}
+		
+		/**
+		 * public LatencyHistogram getLatency()
+		 *
+		 * returns the histogram of the request latencies, from enqueue to completion.
+		 * it is written by the applier thread, read it after close() for exact numbers.
+		 */
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+		
+		/**
+		 * public void close()
+		 *
+		 * rejects new requests, applies the queued ones and stops the applier thread
+		 */
+		public void close() {
+			running = false;
+			LockSupport.unpark(applier);
+			boolean interrupted = false;
+			while (applier.isAlive()) {
+				try {
+					applier.join();
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		private void submit(Request request) {
+			if (!running) {
+				request.fail(new RejectedExecutionException("the executor is closed"));
+				return;
+			}
+			queue.offer(request);
+			if (sleeping) {
+				LockSupport.unpark(applier);
+			}
+			if (!running && queue.remove(request)) { // closed meanwhile and not drained
+				request.fail(new RejectedExecutionException("the executor is closed"));
+			}
+		}
+		
+		/**
+		 * the applier thread: drains the queue in batches, parks when it is empty
+		 */
+		private void applyLoop() {
+			while (true) {
+				Request request = queue.poll();
+				if (request == null) {
+					if (!running) {
+						return;
+					}
+					sleeping = true;
+					if (queue.isEmpty() && running) { // a producer that enqueues now sees sleeping and unparks
+						LockSupport.park(this);
+					}
+					sleeping = false;
+					continue;
+				}
+				int batch = 0;
+				do {
+					apply(request);
+					batch++;
+				} while ((batch < maxBatch) && ((request = queue.poll()) != null));
+				requests += batch;
+				batches++;
+			}
+		}
+		
+		private void apply(Request request) {
+			try {
+				switch (request.operation) {
+				case SEARCH:
+					request.searchResult.complete(tree.search(request.key));
+					break;
+				case INSERT:
+					request.updateResult.complete(tree.insert(request.key, request.info));
+					break;
+				default:
+					request.updateResult.complete(tree.delete(request.key));
+				}
+			}
+			catch (RuntimeException e) {
+				request.fail(e);
+			}
+			latency.record(System.nanoTime() - request.enqueued);
+		}
+		
+		/**
+		 * public static void main(String[] args)
+		 *
+		 * benchmarks the executor against callers that lock the tree (synchronized on it). both runs start
+		 * 'threads' platform threads together, each making 'operations' random calls (80% searches,
+		 * 10% inserts, 10% deletes) on a tree holding half of the key range, and print the throughput
+		 * and the p50 and p99 of the latencies the callers see, from the call to the answer.
+		 * run from the command line: java AVLTree$TreeExecutor [threads] [operations] [seed]
+		 */
+		public static void main(String[] args) throws InterruptedException {
+			int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 10_000;
+			int operations = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+			long seed = (args.length > 2) ? Long.parseLong(args[2]) : 1;
+			System.out.println(threads + " threads x " + operations + " calls: ops/s, p50 and p99 latency in us");
+			for (int round = 0; round < ROUNDS; round++) {
+				String warmUp = (round == 0) ? " (warm-up)" : "";
+				AVLTree locked = prefilled(seed);
+				print("synchronized" + warmUp, benchmark(null, locked, threads, operations, seed));
+				try (TreeExecutor executor = new TreeExecutor(prefilled(seed), 1 << 10)) {
+					print("executor" + warmUp, benchmark(executor, null, threads, operations, seed));
+				}
+			}
+		}
+		
+		private static AVLTree prefilled(long seed) {
+			AVLTree tree = new AVLTree();
+			SplittableRandom random = new SplittableRandom(seed);
+			for (int i = 0; i < BENCHMARK_KEYS / 2; i++) {
+				tree.insert(random.nextInt(BENCHMARK_KEYS), "");
+			}
+			return tree;
+		}
+		
+		/**
+		 * private static LatencyHistogram benchmark(TreeExecutor executor, AVLTree locked, int threads, int operations, long seed)
+		 *
+		 * runs the callers on the executor, or on 'locked' if executor is null, and returns the calls per second
+		 * and the p50 and p99 latencies in microseconds, from the callers' merged histograms
+		 */
+		private static double[] benchmark(TreeExecutor executor, AVLTree locked, int threads, int operations, long seed)
+				throws InterruptedException {
+			SplittableRandom seeds = new SplittableRandom(seed);
+			LatencyHistogram[] latencies = new LatencyHistogram[threads];
+			Thread[] callers = new Thread[threads];
+			CountDownLatch start = new CountDownLatch(1);
+			for (int t = 0; t < threads; t++) {
+				SplittableRandom random = seeds.split();
+				LatencyHistogram latency = new LatencyHistogram();
+				latencies[t] = latency;
+				callers[t] = new Thread(null, () -> {
+					try {
+						start.await();
+					}
+					catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < operations; i++) {
+						int key = random.nextInt(BENCHMARK_KEYS);
+						int operation = random.nextInt(10);
+						long started = System.nanoTime();
+						if (executor != null) {
+							call(executor, operation, key);
+						}
+						else {
+							synchronized (locked) {
+								call(locked, operation, key);
+							}
+						}
+						latency.record(System.nanoTime() - started);
+					}
+				}, "AVLTree-caller-" + t, 1 << 16);
+				callers[t].start();
+			}
+			long started = System.nanoTime();
+			start.countDown();
+			for (Thread caller : callers) {
+				caller.join();
+			}
+			long elapsed = System.nanoTime() - started;
+			LatencyHistogram merged = new LatencyHistogram();
+			for (LatencyHistogram latency : latencies) {
+				merged.add(latency);
+			}
+			return new double[] {merged.getCount() * 1e9 / elapsed, merged.percentile(50) / 1e3, merged.percentile(99) / 1e3};
+		}
+		
+		private static void call(TreeExecutor executor, int operation, int key) {
+			if (operation < 8) {
+				executor.search(key).join();
+			}
+			else if (operation == 8) {
+				executor.insert(key, "").join();
+			}
+			else {
+				executor.delete(key).join();
+			}
+		}
+		
+		private static void call(AVLTree tree, int operation, int key) {
+			if (operation < 8) {
+				tree.search(key);
+			}
+			else if (operation == 8) {
+				tree.insert(key, "");
+			}
+			else {
+				tree.delete(key);
+			}
+		}
+		
+		private static void print(String front, double[] result) {
+			System.out.printf("%-24s %12.0f %10.1f %10.1f%n", front, result[0], result[1], result[2]);
+		}
+		
+		/**
+		 * a queued operation and the future answering it
+		 */
+		private static class Request {
+			private final int operation;
+			private final int key;
+			private final String info;
+			private final long enqueued;
+			private final CompletableFuture<String> searchResult;
+			private final CompletableFuture<Integer> updateResult;
+			
+			private Request(int operation, int key, String info) {
+				this.operation = operation;
+				this.key = key;
+				this.info = info;
+				this.enqueued = System.nanoTime();
+				this.searchResult = (operation == SEARCH) ? new CompletableFuture<>() : null;
+				this.updateResult = (operation == SEARCH) ? null : new CompletableFuture<>();
+			}
+			
+			private void fail(Throwable cause) {
+				if (searchResult != null) {
+					searchResult.completeExceptionally(cause);
+				}
+				else {
+					updateResult.completeExceptionally(cause);
+				}
+			}
+		}
+	}
+
+	/**
+	 * public static class FuzzHarness
+	 *
+	 * Randomized differential testing of AVLTree against java.util.TreeMap.
+	 * a seeded run applies random insert, delete, search, range, split and join operations to both,
+	 * and expiring inserts, expire and deleteRange against a TreeMap of deadlines,
+	 * compares every result, and calls verify() periodically and after every split and join.
+	 * runs alternate by seed between a tree summing its keys (even seeds, whose ranges check aggregate)
+	 * and a plain tree without aggregator (odd seeds, whose ranges check keysToArray(lo, hi)).
+	 * the topdown mode runs insert, delete, search, split and join on a TopDownAVLTree instead,
+	 * the policy mode on a PolicyTree of every BalancingPolicies scheme in turn, the block mode on a
+	 * BlockAVLTree of the given block capacity (MIN_CAPACITY by default),
+	 * and the interval mode runs the writers and stab queries of an IntervalTree.
+	 * run from the command line: java AVLTree$FuzzHarness [seed] [operations] [weak|topdown|policy|block [capacity]|interval]
+	 */
+	public static class FuzzHarness {
+		
+		private static final int VERIFY_INTERVAL = 1 << 12; // operations between two full verifications
+		private static final int AGGREGATE_RANGE = 64; // width of the key ranges whose sums are checked
+		
+		private final SplittableRandom random;
+		private final int keyRange;
+		private AVLTree tree;
+		private java.util.TreeMap<Integer, String> expected;
+		private java.util.TreeMap<Integer, Long> deadlines; // the keys of 'expected' that expire
+		private long now; // one tick per operation
+		
+		public FuzzHarness(long seed, int keyRange) { // Constructor
+			this(seed, keyRange, false);
+		}
+		
+		public FuzzHarness(long seed, int keyRange, boolean weak) { // Constructor of a run over a weak AVL tree if 'weak' is true
+			this.random = new SplittableRandom(seed);
+			this.keyRange = keyRange;
+			this.tree = new AVLTree(((seed & 1) == 0) ? Aggregators.SUM_KEYS : null, weak);
+			this.expected = new java.util.TreeMap<>();
+			this.deadlines = new java.util.TreeMap<>();
+		}
+		
+		public static void main(String[] args) {
+			long seed = (args.length > 0) ? Long.parseLong(args[0]) : System.nanoTime();
+			int operations = (args.length > 1) ? Integer.parseInt(args[1]) : 10000000;
+			long start = System.nanoTime();
+			String mode = (args.length > 2) ? args[2] : "";
+			boolean weak = mode.equals("weak");
+			FuzzHarness harness = new FuzzHarness(seed, 1 << 16, weak);
+			String kind;
+			switch (mode) {
+				case "topdown":
+					harness.runTopDown(operations);
+					kind = "top-down";
+					break;
+				case "policy":
+					for (BalancingPolicies policy : BalancingPolicies.values()) { // a fresh TreeMap per scheme
+						new FuzzHarness(seed, 1 << 16).runPolicy(policy, operations);
+					}
+					kind = "policy";
+					operations *= BalancingPolicies.values().length;
+					break;
+				case "block":
+					int capacity = (args.length > 3) ? Integer.parseInt(args[3]) : BlockAVLTree.MIN_CAPACITY;
+					harness.runBlock(capacity, operations);
+					kind = "block " + capacity;
+					break;
+				case "interval":
+					harness.runInterval(operations);
+					kind = "interval";
+					break;
+				default:
+					harness.run(operations);
+					kind = (((seed & 1) == 0) ? "summed" : "plain") + (weak ? " weak" : "");
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println("seed " + seed + " (" + kind + " tree): " + operations + " operations passed, " + Math.round(operations / seconds) + " ops/s");
+		}
+		
+		/**
+		 * public void run(int operations)
+		 *
+		 * applies 'operations' random operations,
+		 * throws IllegalStateException on the first difference from TreeMap or broken invariant
+		 */
+		public void run(int operations) {
+			for (int i = 1; i <= operations; i++) {
+				int key = random.nextInt(keyRange) - keyRange / 2; // negative keys as well
+				int choice = random.nextInt(1000);
+				now++;
+				if (choice < 450) {
+					String value = Integer.toString(key);
+					boolean expiring = (choice % 4 == 0);
+					long deadline = now + 1 + random.nextInt(1 << 14);
+					int result = expiring ? tree.insertExpiring(key, value, deadline) : tree.insert(key, value);
+					check((result == -1) == expected.containsKey(key), "insert", key);
+					if (result != -1) {
+						expected.put(key, value);
+						if (expiring) {
+							deadlines.put(key, deadline);
+						}
+					}
+				}
+				else if (choice < 900) {
+					int result = tree.delete(key);
+					check((result == -1) == !expected.containsKey(key), "delete", key);
+					expected.remove(key);
+					deadlines.remove(key);
+				}
+				else if (choice < 990) {
+					check(Objects.equals(tree.search(key), expected.get(key)), "search", key);
+					check(tree.getDeadline(key) == deadlines.getOrDefault(key, NO_DEADLINE), "getDeadline", key);
+				}
+				else if (choice < 992) {
+					expireAll(key);
+				}
+				else if (choice < 994) {
+					int hi = key + random.nextInt(AGGREGATE_RANGE);
+					java.util.Map<Integer, String> range = expected.subMap(key, true, hi, true);
+					check(tree.deleteRange(key, hi) == range.size(), "deleteRange", key);
+					deadlines.keySet().removeAll(range.keySet());
+					range.clear();
+				}
+				else if (choice < 998) {
+					java.util.Set<Integer> range = expected.subMap(key, true, key + AGGREGATE_RANGE, true).keySet();
+					if (tree.getAggregator() == null) {
+						check(java.util.Arrays.equals(tree.keysToArray(key, key + AGGREGATE_RANGE), range.stream().mapToInt(Integer::intValue).toArray()), "keysToArray", key);
+					}
+					else {
+						long sum = 0;
+						for (int k : range) {
+							sum += k;
+						}
+						check(tree.aggregate(key, key + AGGREGATE_RANGE) == sum, "aggregate", key);
+					}
+				}
+				else {
+					splitAndJoin(key);
+				}
+				check(tree.size() == expected.size(), "size", key);
+				if (!expected.isEmpty()) {
+					check(expected.firstEntry().getValue().equals(tree.min()), "min", key);
+					check(expected.lastEntry().getValue().equals(tree.max()), "max", key);
+				}
+				if (i % VERIFY_INTERVAL == 0) {
+					tree.verify();
+				}
+			}
+			tree.verify();
+			check(java.util.Arrays.equals(tree.keysToArray(), expected.keySet().stream().mapToInt(Integer::intValue).toArray()), "keysToArray", 0);
+			expireAll(0);
+		}
+		
+		/**
+		 * public void runTopDown(int operations)
+		 *
+		 * applies 'operations' random insert, delete, search, split and join operations to a TopDownAVLTree
+		 * and to the TreeMap, verifies the tree periodically and after every join,
+		 * throws IllegalStateException on the first difference from TreeMap or broken invariant
+		 */
+		public void runTopDown(int operations) {
+			TopDownAVLTree topDown = new TopDownAVLTree();
+			for (int i = 1; i <= operations; i++) {
+				int key = random.nextInt(keyRange) - keyRange / 2;
+				int choice = random.nextInt(1000);
+				if (choice < 450) {
+					String value = Integer.toString(key);
+					int result = topDown.insert(key, value);
+					check((result == -1) == expected.containsKey(key), "insert", key);
+					expected.putIfAbsent(key, value);
+				}
+				else if (choice < 900) {
+					int result = topDown.delete(key);
+					check((result == -1) == !expected.containsKey(key), "delete", key);
+					expected.remove(key);
+				}
+				else if (choice < 998) {
+					check(Objects.equals(topDown.search(key), expected.get(key)), "search", key);
+				}
+				else if (expected.ceilingKey(key) != null) { // split at the first key >= key and join back
+					int x = expected.ceilingKey(key);
+					TopDownAVLTree[] halves = topDown.split(x);
+					check(halves[0].size() == expected.headMap(x).size(), "split size", x);
+					check(halves[1].size() == expected.tailMap(x, false).size(), "split size", x);
+					int first = random.nextInt(2);
+					halves[first].join(x, expected.get(x), halves[1 - first]);
+					topDown = halves[first];
+					topDown.verify();
+				}
+				check(topDown.size() == expected.size(), "size", key);
+				if (!expected.isEmpty()) {
+					check(expected.firstEntry().getValue().equals(topDown.min()), "min", key);
+					check(expected.lastEntry().getValue().equals(topDown.max()), "max", key);
+				}
+				if (i % VERIFY_INTERVAL == 0) {
+					topDown.verify();
+				}
+			}
+			topDown.verify();
+			check(java.util.Arrays.equals(topDown.keysToArray(), expected.keySet().stream().mapToInt(Integer::intValue).toArray()), "keysToArray", 0);
+			check(java.util.Arrays.equals(topDown.infoToArray(), expected.values().toArray(new String[0])), "infoToArray", 0);
+		}
+		
+		/**
+		 * public void runPolicy(BalancingPolicy policy, int operations)
+		 *
+		 * applies 'operations' random insert, delete, search, split and join operations to a PolicyTree
+		 * of 'policy' and to the TreeMap, as runTopDown
+		 * throws IllegalStateException on the first difference from TreeMap or broken invariant
+		 */
+		public void runPolicy(BalancingPolicy policy, int operations) {
+			PolicyTree policyTree = new PolicyTree(policy);
+			for (int i = 1; i <= operations; i++) {
+				int key = random.nextInt(keyRange) - keyRange / 2;
+				int choice = random.nextInt(1000);
+				if (choice < 450) {
+					String value = Integer.toString(key);
+					int result = policyTree.insert(key, value);
+					check((result >= -1) && ((result == -1) == expected.containsKey(key)), "insert", key);
+					expected.putIfAbsent(key, value);
+				}
+				else if (choice < 900) {
+					int result = policyTree.delete(key);
+					check((result >= -1) && ((result == -1) == !expected.containsKey(key)), "delete", key);
+					expected.remove(key);
+				}
+				else if (choice < 998) {
+					check(Objects.equals(policyTree.search(key), expected.get(key)), "search", key);
+				}
+				else if (expected.ceilingKey(key) != null) { // split at the first key >= key and join back
+					int x = expected.ceilingKey(key);
+					PolicyTree[] halves = policyTree.split(x);
+					check(halves[0].size() == expected.headMap(x).size(), "split size", x);
+					check(halves[1].size() == expected.tailMap(x, false).size(), "split size", x);
+					halves[0].verify();
+					halves[1].verify();
+					int first = random.nextInt(2);
+					check(halves[first].join(x, expected.get(x), halves[1 - first]) >= 0, "join", x);
+					policyTree = halves[first];
+					policyTree.verify();
+				}
+				check(policyTree.size() == expected.size(), "size", key);
+				if (i % VERIFY_INTERVAL == 0) {
+					policyTree.verify();
+				}
+			}
+			policyTree.verify();
+			check(java.util.Arrays.equals(policyTree.keysToArray(), expected.keySet().stream().mapToInt(Integer::intValue).toArray()), "keysToArray", 0);
+			check(java.util.Arrays.equals(policyTree.infoToArray(), expected.values().toArray(new String[0])), "infoToArray", 0);
+		}
+		
+		/**
+		 * public void runBlock(int capacity, int operations)
+		 *
+		 * applies 'operations' random insert, delete, search, split and join operations to a BlockAVLTree
+		 * with blocks of up to 'capacity' items and to the TreeMap, as runTopDown
+		 * throws IllegalStateException on the first difference from TreeMap or broken invariant
+		 */
+		public void runBlock(int capacity, int operations) {
+			BlockAVLTree blocks = new BlockAVLTree(capacity);
+			for (int i = 1; i <= operations; i++) {
+				int key = random.nextInt(keyRange) - keyRange / 2;
+				int choice = random.nextInt(1000);
+				if (choice < 450) {
+					String value = Integer.toString(key);
+					int result = blocks.insert(key, value);
+					check((result == -1) == expected.containsKey(key), "insert", key);
+					expected.putIfAbsent(key, value);
+				}
+				else if (choice < 900) {
+					int result = blocks.delete(key);
+					check((result == -1) == !expected.containsKey(key), "delete", key);
+					expected.remove(key);
+				}
+				else if (choice < 998) {
+					check(Objects.equals(blocks.search(key), expected.get(key)), "search", key);
+				}
+				else if (expected.ceilingKey(key) != null) { // split at the first key >= key and join back
+					int x = expected.ceilingKey(key);
+					BlockAVLTree[] halves = blocks.split(x);
+					check(halves[0].size() == expected.headMap(x).size(), "split size", x);
+					check(halves[1].size() == expected.tailMap(x, false).size(), "split size", x);
+					halves[0].verify();
+					halves[1].verify();
+					int first = random.nextInt(2);
+					halves[first].join(x, expected.get(x), halves[1 - first]);
+					blocks = halves[first];
+					blocks.verify();
+				}
+				check(blocks.size() == expected.size(), "size", key);
+				if (i % VERIFY_INTERVAL == 0) {
+					blocks.verify();
+				}
+			}
+			blocks.verify();
+			check(java.util.Arrays.equals(blocks.keysToArray(), expected.keySet().stream().mapToInt(Integer::intValue).toArray()), "keysToArray", 0);
+			check(java.util.Arrays.equals(blocks.infoToArray(), expected.values().toArray(new String[0])), "infoToArray", 0);
+		}
+		
+		/**
+		 * public void runInterval(int operations)
+		 *
+		 * applies 'operations' random insert, fingerInsert, append, delete(start, end) and stab operations
+		 * to an IntervalTree and to a TreeMap from each start to the ends of its intervals, checks that the
+		 * writers an interval tree does not support are rejected, and verifies the tree periodically.
+		 * throws IllegalStateException on the first difference from the TreeMap or broken invariant
+		 */
+		public void runInterval(int operations) {
+			IntervalTree intervals = new IntervalTree();
+			java.util.TreeMap<Integer, List<Integer>> starts = new java.util.TreeMap<>();
+			for (int i = 1; i <= operations; i++) {
+				int key = random.nextInt(keyRange) - keyRange / 2;
+				int choice = random.nextInt(1000);
+				if (choice < 400) { // an interval, or a point interval through fingerInsert
+					int end = (choice < 100) ? key : key + random.nextInt(AGGREGATE_RANGE);
+					int result = (choice < 100) ? intervals.fingerInsert(key, "f") : intervals.insert(key, end, "i");
+					check((result >= 0) && ((result == 0) || !starts.containsKey(key)), "insert", key);
+					starts.computeIfAbsent(key, start -> new ArrayList<>()).add(end);
+				}
+				else if (choice < 450) { // append after the last start, or check that an earlier start is rejected
+					if (!starts.isEmpty() && random.nextBoolean()) {
+						try {
+							intervals.append(starts.firstKey(), "a");
+							check(false, "append", starts.firstKey());
+						}
+						catch (IllegalArgumentException e) { // expected
+						}
+					}
+					else {
+						int start = starts.isEmpty() ? key : starts.lastKey() + 1 + random.nextInt(8);
+						check(intervals.append(start, "a") >= 0, "append", start);
+						starts.computeIfAbsent(start, k -> new ArrayList<>()).add(start);
+					}
+				}
+				else if (choice < 850) { // one interval, of the start's or an arbitrary end
+					List<Integer> ends = starts.get(key);
+					int end = ((ends != null) && random.nextBoolean()) ? ends.get(random.nextInt(ends.size())) : key + random.nextInt(AGGREGATE_RANGE);
+					boolean removed = (ends != null) && ends.remove((Integer) end);
+					check(intervals.delete(key, end) == removed, "delete", key);
+					if ((ends != null) && ends.isEmpty()) {
+						starts.remove(key);
+					}
+				}
+				else if (choice < 995) {
+					List<String> stabbed = new ArrayList<>();
+					for (java.util.Map.Entry<Integer, List<Integer>> entry : starts.headMap(key, true).tailMap(key - AGGREGATE_RANGE - 8, true).entrySet()) {
+						for (int end : entry.getValue()) {
+							if (end >= key) {
+								stabbed.add("[" + entry.getKey() + ", " + end + "]");
+							}
+						}
+					}
+					check(intervals.stab(key).toString().equals(stabbed.toString()), "stab", key);
+				}
+				else { // intervals do not expire and their weights are their ends
+					for (int attempt = 0; attempt < 3; attempt++) {
+						try {
+							if (attempt == 0) {
+								intervals.setDeadline(key, now);
+							}
+							else if (attempt == 1) {
+								intervals.insertExpiring(key, "e", now);
+							}
+							else {
+								intervals.setWeight(key, key);
+							}
+							check(false, "unsupported writer", key);
+						}
+						catch (UnsupportedOperationException e) { // expected
+						}
+					}
+					check(intervals.expire(Long.MAX_VALUE - 1, keyRange) == 0, "expire", key);
+				}
+				check(intervals.size() == starts.size(), "size", key);
+				if (i % VERIFY_INTERVAL == 0) {
+					intervals.verify();
+				}
+			}
+			intervals.verify();
+			check(java.util.Arrays.equals(intervals.keysToArray(), starts.keySet().stream().mapToInt(Integer::intValue).toArray()), "keysToArray", 0);
+		}
+		
+		/**
+		 * expires in small batches until nothing is due at 'now', and checks that exactly the items
+		 * whose deadline passed are gone and that nextDeadline is the earliest deadline left
+		 */
+		private void expireAll(int key) {
+			int due = 0;
+			for (long deadline : deadlines.values()) {
+				if (deadline <= now) {
+					due++;
+				}
+			}
+			int expired = 0;
+			for (int batch; (batch = tree.expire(now, 1 + random.nextInt(8))) > 0; ) {
+				expired += batch;
+			}
+			check(expired == due, "expire", key);
+			java.util.Iterator<java.util.Map.Entry<Integer, Long>> entries = deadlines.entrySet().iterator();
+			while (entries.hasNext()) {
+				java.util.Map.Entry<Integer, Long> entry = entries.next();
+				if (entry.getValue() <= now) {
+					check(tree.search(entry.getKey()) == null, "expire", entry.getKey());
+					expected.remove(entry.getKey());
+					entries.remove();
+				}
+			}
+			long next = deadlines.isEmpty() ? NO_DEADLINE : java.util.Collections.min(deadlines.values());
+			check(tree.nextDeadline() == next, "nextDeadline", key);
+		}
+		
+		/**
+		 * splits the tree at the first key >= 'key', checks the sizes, min and max of both halves
+		 * in O(logn), joins them back with the same key and verifies the joined tree.
+		 */
+		private void splitAndJoin(int key) {
+			Integer ceiling = expected.ceilingKey(key);
+			if (ceiling == null) {
+				return;
+			}
+			int x = ceiling;
+			String value = expected.get(x);
+			deadlines.remove(x); // the joined node is a new one
+			AVLTree[] halves = tree.split(x);
+			check(halves[0].size() + halves[1].size() + 1 == expected.size(), "split size", x);
+			for (int side = 0; side < 2; side++) {
+				Integer first = (side == 0) ? expected.firstKey() : expected.higherKey(x);
+				Integer last = (side == 0) ? expected.lowerKey(x) : expected.lastKey();
+				if ((first == null) || (last == null) || (first > last)) { // empty half
+					check(halves[side].empty(), "split empty", x);
+				}
+				else {
+					check(expected.get(first).equals(halves[side].min()), "split min", x);
+					check(expected.get(last).equals(halves[side].max()), "split max", x);
+				}
+			}
+			AVLTree smaller = halves[0];
+			AVLTree larger = halves[1];
+			IAVLNode node = smaller.new AVLNode(x, value, null);
+			if (random.nextBoolean()) {
+				smaller.join(node, larger);
+				tree = smaller;
+			}
+			else {
+				larger.join(node, smaller);
+				tree = larger;
+			}
+			tree.verify();
+		}
+		
+		private void check(boolean condition, String operation, int key) {
+			if (!condition) {
+				throw new IllegalStateException(operation + " of key " + key + " differs from TreeMap");
+			}
+		}
+	}
+
+	/**
+	 * abstract static class JoinNode<N extends JoinNode<N>>
+	 *
+	 * a node of the parent-free engines (TopDownAVLTree, BlockAVLTree and PolicyTree),
+	 * a missing child is null. rank belongs to the balancing scheme, which is the height for JoinAVL.
+	 */
+	abstract static class JoinNode<N extends JoinNode<N>> {
+		N left;
+		N right;
+		int rank;
+		
+		/**
+		 * recomputes what the node sums up over its subtree (its size, ...) from its children
+		 */
+		abstract void update();
+		
+		/**
+		 * rotations for every scheme, the subtree sums are updated and ranks are left to the caller
+		 */
+		static <N extends JoinNode<N>> N rotateLeft(N node) {
+			N r = node.right;
+			node.right = r.left;
+			r.left = node;
+			node.update();
+			r.update();
+			return r;
+		}
+		
+		static <N extends JoinNode<N>> N rotateRight(N node) {
+			N l = node.left;
+			node.left = l.right;
+			l.right = node;
+			node.update();
+			l.update();
+			return l;
+		}
+	}
+	
+	/**
+	 * static class JoinAVL
+	 *
+	 * The AVL rebalancing of the parent-free engines, written once over JoinNode:
+	 * balance restores the AVL rule at a node, and join hangs the lower tree on the spine of the higher one
+	 * (as AVLTree.join), so an engine builds its insert, delete and split on join and balance.
+	 * an engine owns a counting instance, which adds its rank changes and rotations
+	 * (a double rotation is counted as 2) to 'rebalancing'.
+	 */
+	static class JoinAVL {
+		
+		private final boolean counting;
+		int rebalancing; // rebalancing operations since the owner last cleared it
+		
+		JoinAVL(boolean counting) { // Constructor
+			this.counting = counting;
+		}
+		
+		/**
+		 * <N extends JoinNode<N>> N join(N l, N x, N r)
+		 *
+		 * links l, x and r (keys(l) < x < keys(r)) into one AVL subtree and returns its root.
+		 * descends the spine of the higher subtree down to the rank of the lower one.
+		 * complexity: O(|rank(l) - rank(r)| + 1).
+		 */
+		<N extends JoinNode<N>> N join(N l, N x, N r) {
+			if (rank(l) > rank(r) + 1) {
+				l.right = join(l.right, x, r);
+				return balance(l);
+			}
+			if (rank(r) > rank(l) + 1) {
+				r.left = join(l, x, r.left);
+				return balance(r);
+			}
+			x.left = l;
+			x.right = r;
+			fix(x);
+			return x;
+		}
+		
+		/**
+		 * <N extends JoinNode<N>> N balance(N node)
+		 *
+		 * restores the AVL rule at 'node' whose subtrees are valid AVL trees of
+		 * rank difference at most 2, and updates its rank and subtree sums.
+		 * returns the root of the rebalanced subtree
+		 * complexity: O(1).
+		 */
+		<N extends JoinNode<N>> N balance(N node) {
+			int difference = rank(node.left) - rank(node.right);
+			if (difference > 1) { // left is too high
+				if (rank(node.left.left) < rank(node.left.right)) { // left child is heavy inwards -> double rotation (LR)
+					node.left = rotateLeft(node.left);
+				}
+				return rotateRight(node);
+			}
+			if (difference < -1) { // symmetric case
+				if (rank(node.right.right) < rank(node.right.left)) { // double rotation (RL)
+					node.right = rotateRight(node.right);
+				}
+				return rotateLeft(node);
+			}
+			if (fix(node)) { // promotion or demotion
+				count();
+			}
+			return node;
+		}
+		
+		private <N extends JoinNode<N>> N rotateLeft(N node) {
+			N r = node.right;
+			node.right = r.left;
+			r.left = node;
+			fix(node);
+			fix(r);
+			count();
+			return r;
+		}
+		
+		private <N extends JoinNode<N>> N rotateRight(N node) {
+			N l = node.left;
+			node.left = l.right;
+			l.right = node;
+			fix(node);
+			fix(l);
+			count();
+			return l;
+		}
+		
+		private void count() {
+			if (counting) {
+				rebalancing++;
+			}
+		}
+		
+		/**
+		 * static boolean fix(JoinNode<?> node)
+		 *
+		 * recomputes the rank and subtree sums of 'node' from its children
+		 * returns true if the rank has changed
+		 * complexity: O(1).
+		 */
+		static boolean fix(JoinNode<?> node) {
+			int oldRank = node.rank;
+			node.rank = Math.max(rank(node.left), rank(node.right)) + 1;
+			node.update();
+			return node.rank != oldRank;
+		}
+		
+		static int rank(JoinNode<?> node) {
+			return (node == null) ? -1 : node.rank;
+		}
+	}
+	
+	/**
+	 * public static class TopDownAVLTree
+	 *
+	 * An alternative AVL engine with distinct integer keys and info whose nodes
+	 * carry no parent pointer and no virtual leaves (a missing child is null).
+	 * insert and delete descend once from the root and record the search path
+	 * in an explicit stack, then rebalance while popping that stack instead of
+	 * climbing through parent pointers.
+	 * split and join relink the existing nodes, the rotations, balance and join are those of JoinAVL.
+	 */
+	public static class TopDownAVLTree {
+		
+		private static final int MAX_DEPTH = 64; // an AVL tree with 2^31 nodes is less than 46 levels deep
+		
+		private Node root;
+		private Node min;
+		private Node max;
+		private final Node[] path = new Node[MAX_DEPTH]; // the search path of the current operation
+		private final JoinAVL avl = new JoinAVL(true); // counts the rebalancing operations of the current operation
+		
+		public TopDownAVLTree() { // Constructor
+			this.root = null;
+			this.min = null;
+			this.max = null;
+		}
+		
+		/**
+		 * public boolean empty()
+		 *
+		 * returns true if and only if the tree is empty
+		 * complexity: O(1).
+		 */
+		public boolean empty() {
+			return root == null;
+		}
+		
+		/**
+		 * public int size()
+		 *
+		 * Returns the number of nodes in the tree.
+		 * complexity: O(1).
+		 */
+		public int size() {
+			return size(root);
+		}
+		
+		/**
+		 * public String search(int k)
+		 *
+		 * returns the info of an item with key k if it exists in the tree
+		 * otherwise, returns null
+		 * complexity: O(logn).
+		 */
+		public String search(int k) {
+			Node node = root;
+			while (node != null) {
+				if (k == node.key) {
+					return node.value;
+				}
+				node = (k < node.key) ? node.left : node.right;
+			}
+			return null;
+		}
+		
+		/**
+		 * public String min()
+		 *
+		 * Returns the info of the item with the smallest key in the tree,
+		 * or null if the tree is empty
+		 * complexity: O(1).
+		 */
+		public String min() {
+			return (min == null) ? null : min.value;
+		}
+		
+		/**
+		 * public String max()
+		 *
+		 * Returns the info of the item with the largest key in the tree,
+		 * or null if the tree is empty
+		 * complexity: O(1).
+		 */
+		public String max() {
+			return (max == null) ? null : max.value;
+		}
+		
+		/**
+		 * public int insert(int k, String i)
+		 *
+		 * inserts an item with key k and info i to the tree.
+		 * returns the number of rebalancing operations (rank changes and rotations,
+		 * a double rotation is counted as 2), or -1 if an item with key k already exists in the tree.
+		 * complexity: O(logn).
+		 */
+		public int insert(int k, String i) {
+			int depth = 0;
+			Node node = root;
+			while (node != null) { // single descent, the path is kept in the stack
+				if (k == node.key) {
+					clearPath(depth);
+					return -1;
+				}
+				path[depth++] = node;
+				node = (k < node.key) ? node.left : node.right;
+			}
+			Node inserted = new Node(k, i);
+			avl.rebalancing = 0;
+			root = unwind(depth, null, inserted);
+			if ((min == null) || (k < min.key)) { // update minimum
+				min = inserted;
+			}
+			if ((max == null) || (k > max.key)) { // update maximum
+				max = inserted;
+			}
+			return avl.rebalancing;
+		}
+		
+		/**
+		 * public int delete(int k)
+		 *
+		 * deletes an item with key k from the tree, if it is there.
+		 * a binary node takes the key and info of its successor, and the successor is unlinked instead.
+		 * returns the number of rebalancing operations, or -1 if an item with key k was not found in the tree.
+		 * complexity: O(logn).
+		 */
+		public int delete(int k) {
+			int depth = 0;
+			Node node = root;
+			while ((node != null) && (node.key != k)) {
+				path[depth++] = node;
+				node = (k < node.key) ? node.left : node.right;
+			}
+			if (node == null) { // the key is not in the tree
+				clearPath(depth);
+				return -1;
+			}
+			if ((node.left != null) && (node.right != null)) { // binary node -> continue the descent to the successor
+				path[depth++] = node;
+				Node successor = node.right;
+				while (successor.left != null) {
+					path[depth++] = successor;
+					successor = successor.left;
+				}
+				node.key = successor.key;
+				node.value = successor.value;
+				if (max == successor) {
+					max = node;
+				}
+				node = successor;
+			}
+			avl.rebalancing = 0;
+			root = unwind(depth, node, (node.left != null) ? node.left : node.right);
+			if (min == node) { // update min
+				min = first(root);
+			}
+			if (max == node) { // update max
+				max = last(root);
+			}
+			return avl.rebalancing;
+		}
+		
+		/**
+		 * private Node unwind(int depth, Node old, Node child)
+		 *
+		 * pops the search path: every node on it replaces its child 'old' with 'child'
+		 * (a null 'old' means the free slot on the side of the inserted key), and is rebalanced.
+		 * returns the new root
+		 * complexity: O(depth).
+		 */
+		private Node unwind(int depth, Node old, Node child) {
+			while (depth > 0) {
+				Node parent = path[--depth];
+				path[depth] = null;
+				if ((parent.left == old) && ((old != null) || (child.key < parent.key))) {
+					parent.left = child;
+				}
+				else {
+					parent.right = child;
+				}
+				old = parent;
+				child = avl.balance(parent);
+			}
+			return child;
+		}
+		
+		private void clearPath(int depth) {
+			while (depth > 0) {
+				path[--depth] = null;
+			}
+		}
+		
+		/**
+		 * public TopDownAVLTree[] split(int x)
+		 *
+		 * splits the tree into 2 trees according to the key x.
+		 * Returns an array [t1, t2] with two trees. keys(t1) < x < keys(t2).
+		 * precondition: search(x) != null
+		 * complexity: O(logn).
+		 */
+		public TopDownAVLTree[] split(int x) {
+			int depth = 0;
+			Node node = root;
+			while (node.key != x) {
+				path[depth++] = node;
+				node = (x < node.key) ? node.left : node.right;
+			}
+			Node smaller = node.left;
+			Node larger = node.right;
+			while (depth > 0) { // join every ancestor with the side it belongs to
+				Node parent = path[--depth];
+				path[depth] = null;
+				if (parent.key < x) {
+					smaller = avl.join(parent.left, parent, smaller);
+				}
+				else {
+					larger = avl.join(larger, parent, parent.right);
+				}
+			}
+			TopDownAVLTree[] result = new TopDownAVLTree[2];
+			result[0] = new TopDownAVLTree();
+			result[0].setRoot(smaller);
+			result[1] = new TopDownAVLTree();
+			result[1].setRoot(larger);
+			this.setRoot(null);
+			return result;
+		}
+		
+		/**
+		 * public int join(int k, String i, TopDownAVLTree t)
+		 *
+		 * joins t and a new item with key k and info i with the tree.
+		 * Returns the complexity of the operation (|tree.rank - t.rank| + 1).
+		 * precondition: keys(t) < k < keys() or keys() < k < keys(t).
+		 * complexity: O(|tree.rank - t.rank| + 1).
+		 */
+		public int join(int k, String i, TopDownAVLTree t) {
+			int complexity = Math.abs(JoinAVL.rank(root) - JoinAVL.rank(t.root)) + 1;
+			Node x = new Node(k, i);
+			if ((empty() && (t.empty() || (k < t.min.key))) || (!empty() && (k > max.key))) { // the order is tree -> x -> t
+				setRoot(avl.join(this.root, x, t.root));
+			}
+			else { // the order is t -> x -> tree
+				setRoot(avl.join(t.root, x, this.root));
+			}
+			t.setRoot(null);
+			return complexity;
+		}
+		
+		private void setRoot(Node node) {
+			this.root = node;
+			this.min = first(node);
+			this.max = last(node);
+		}
+		
+		/**
+		 * public int[] keysToArray()
+		 *
+		 * Returns a sorted array which contains all keys in the tree,
+		 * or an empty array if the tree is empty.
+		 * complexity: O(n).
+		 */
+		public int[] keysToArray() {
+			int[] result = new int[size()];
+			int index = 0;
+			int depth = 0;
+			Node node = root;
+			while ((node != null) || (depth > 0)) { // in-order walk with an explicit stack
+				while (node != null) {
+					path[depth++] = node;
+					node = node.left;
+				}
+				node = path[--depth];
+				path[depth] = null;
+				result[index++] = node.key;
+				node = node.right;
+			}
+			return result;
+		}
+		
+		/**
+		 * public String[] infoToArray()
+		 *
+		 * Returns an array which contains all info in the tree,
+		 * sorted by their respective keys,
+		 * or an empty array if the tree is empty.
+		 * complexity: O(n).
+		 */
+		public String[] infoToArray() {
+			String[] result = new String[size()];
+			int index = 0;
+			int depth = 0;
+			Node node = root;
+			while ((node != null) || (depth > 0)) {
+				while (node != null) {
+					path[depth++] = node;
+					node = node.left;
+				}
+				node = path[--depth];
+				path[depth] = null;
+				result[index++] = node.value;
+				node = node.right;
+			}
+			return result;
+		}
+		
+		/**
+		 * public void verify()
+		 *
+		 * checks the BST order, the AVL rule, the rank and size of every node, and min and max.
+		 * throws IllegalStateException describing the first violation found.
+		 * complexity: O(n).
+		 */
+		public void verify() {
+			verifyNode(root, Long.MIN_VALUE, Long.MAX_VALUE);
+			if ((min != first(root)) || (max != last(root))) {
+				throw new IllegalStateException("min or max is not the first or last node of the tree");
+			}
+		}
+		
+		private static void verifyNode(Node node, long low, long high) {
+			if (node == null) {
+				return;
+			}
+			if ((node.key <= low) || (node.key >= high)) {
+				throw new IllegalStateException("key " + node.key + " is out of order, expected in (" + low + ", " + high + ")");
+			}
+			verifyNode(node.left, low, node.key);
+			verifyNode(node.right, node.key, high);
+			int left = JoinAVL.rank(node.left);
+			int right = JoinAVL.rank(node.right);
+			if ((node.rank != Math.max(left, right) + 1) || (Math.abs(left - right) > 1)) {
+				throw new IllegalStateException("AVL node " + node.key + " has rank " + node.rank + " over " + left + "," + right);
+			}
+			if (node.size != size(node.left) + size(node.right) + 1) {
+				throw new IllegalStateException("node " + node.key + " has size " + node.size);
+			}
+		}
+		
+		private static int size(Node node) {
+			return (node == null) ? 0 : node.size;
+		}
+		
+		private static Node first(Node node) {
+			if (node == null) {
+				return null;
+			}
+			while (node.left != null) {
+				node = node.left;
+			}
+			return node;
+		}
+		
+		private static Node last(Node node) {
+			if (node == null) {
+				return null;
+			}
+			while (node.right != null) {
+				node = node.right;
+			}
+			return node;
+		}
+		
+		/**
+		 * private static class Node
+		 *
+		 * a node without parent pointer, a missing child is null (rank -1, size 0)
+		 */
+		private static class Node extends JoinNode<Node> {
+			private int key;
+			private String value;
+			private int size;
+			
+			private Node(int key, String value) {
+				this.key = key;
+				this.value = value;
+				this.rank = 0;
+				this.size = 1;
+			}
+			
+			void update() {
+				size = size(left) + size(right) + 1;
+			}
+		}
+	}
+	
+	/**
+	 * public static class BlockAVLTree
+	 *
+	 * An AVL engine whose nodes are sorted blocks of up to 32-128 items instead of single items
+	 * (distinct integer keys and info), so a search compares against one key per level, then
+	 * searches a single block that spans a few cache lines, and every item costs one int and one reference.
+	 * every key in a block's left subtree is smaller than its first key and every key in its right
+	 * subtree is larger than its last key. a block is never empty.
+	 * a full block splits in two and its upper half is linked as the first block of its right subtree,
+	 * an underfull block merges with its successor (or predecessor) in its subtree when they fit in one block.
+	 * the blocks are balanced by the AVL rule with JoinAVL, the rotations, balance and join of TopDownAVLTree.
+	 */
+	public static class BlockAVLTree {
+		
+		public static final int MIN_CAPACITY = 32;
+		public static final int MAX_CAPACITY = 128;
+		
+		private final int capacity; // the largest number of items in a block
+		private Block root;
+		private final JoinAVL avl = new JoinAVL(true); // counts the rebalancing operations of the current operation
+		private boolean changed; // whether the current insert or delete found something to change
+		private Block detached; // the block removed by removeFirst or removeLast
+		private Block smaller; // the results of splitBlocks
+		private Block larger;
+		
+		public BlockAVLTree() { // Constructor
+			this(64);
+		}
+		
+		public BlockAVLTree(int capacity) { // Constructor of a tree with blocks of up to 'capacity' items
+			if ((capacity < MIN_CAPACITY) || (capacity > MAX_CAPACITY)) {
+				throw new IllegalArgumentException("block capacity must be in " + MIN_CAPACITY + ".." + MAX_CAPACITY + ", got " + capacity);
+			}
+			this.capacity = capacity;
+			this.root = null;
+		}
+		
+		/**
+		 * public boolean empty()
+		 *
+		 * returns true if and only if the tree is empty
+		 * complexity: O(1).
+		 */
+		public boolean empty() {
+			return root == null;
+		}
+		
+		/**
+		 * public int size()
+		 *
+		 * Returns the number of items in the tree.
+		 * complexity: O(1).
+		 */
+		public int size() {
+			return size(root);
+		}
+		
+		/**
+		 * public int blocks()
+		 *
+		 * Returns the number of blocks in the tree.
+		 * complexity: O(1).
+		 */
+		public int blocks() {
+			return blocks(root);
+		}
+		
+		/**
+		 * public String search(int k)
+		 *
+		 * returns the info of an item with key k if it exists in the tree
+		 * otherwise, returns null
+		 * complexity: O(logn).
+		 */
+		public String search(int k) {
+			Block block = root;
+			while (block != null) {
+				if (k < block.keys[0]) {
+					block = block.left;
+				}
+				else if (k > block.keys[block.count - 1]) {
+					block = block.right;
+				}
+				else { // the only block that may hold k
+					int index = block.lowerBound(k);
+					return (block.keys[index] == k) ? block.infos[index] : null;
+				}
+			}
+			return null;
+		}
+		
+		/**
+		 * public int insert(int k, String i)
+		 *
+		 * inserts an item with key k and info i to the tree.
+		 * returns the number of rebalancing operations on blocks (rank changes and rotations,
+		 * a double rotation is counted as 2), or -1 if an item with key k already exists in the tree.
+		 * complexity: O(logn).
+		 */
+		public int insert(int k, String i) {
+			avl.rebalancing = 0;
+			if (empty()) {
+				root = new Block(capacity);
+				root.add(0, k, i);
+				JoinAVL.fix(root);
+				return 0;
+			}
+			changed = false;
+			root = insert(root, k, i);
+			return changed ? avl.rebalancing : -1;
+		}
+		
+		/**
+		 * private Block insert(Block block, int k, String i)
+		 *
+		 * inserts the item into the block that bounds k, or into the block next to which the descent
+		 * falls off the tree (k then lies between the block and its neighbour).
+		 * returns the new root of the subtree
+		 * complexity: O(logn).
+		 */
+		private Block insert(Block block, int k, String i) {
+			if ((k < block.keys[0]) && (block.left != null)) {
+				block.left = insert(block.left, k, i);
+			}
+			else if ((k > block.keys[block.count - 1]) && (block.right != null)) {
+				block.right = insert(block.right, k, i);
+			}
+			else {
+				int index = block.lowerBound(k);
+				if ((index < block.count) && (block.keys[index] == k)) { // the key is already in the tree
+					return block;
+				}
+				changed = true;
+				if (block.count == capacity) { // split the full block, its upper half becomes its successor
+					Block upper = block.cut(capacity / 2);
+					if (index <= block.count) {
+						block.add(index, k, i);
+					}
+					else {
+						upper.add(index - block.count, k, i);
+					}
+					block.right = insertFirst(block.right, upper);
+				}
+				else {
+					block.add(index, k, i);
+				}
+			}
+			return avl.balance(block);
+		}
+		
+		/**
+		 * private Block insertFirst(Block block, Block first)
+		 *
+		 * links 'first', smaller than every key of the subtree, as its leftmost block
+		 * returns the new root of the subtree
+		 * complexity: O(logn).
+		 */
+		private Block insertFirst(Block block, Block first) {
+			if (block == null) {
+				JoinAVL.fix(first);
+				return first;
+			}
+			block.left = insertFirst(block.left, first);
+			return avl.balance(block);
+		}
+		
+		/**
+		 * public int delete(int k)
+		 *
+		 * deletes an item with key k from the tree, if it is there.
+		 * returns the number of rebalancing operations on blocks, or -1 if an item with key k was not found in the tree.
+		 * complexity: O(logn).
+		 */
+		public int delete(int k) {
+			avl.rebalancing = 0;
+			changed = false;
+			root = delete(root, k);
+			return changed ? avl.rebalancing : -1;
+		}
+		
+		/**
+		 * private Block delete(Block block, int k)
+		 *
+		 * removes k from the only block that may hold it. an emptied block is unlinked, and a block
+		 * below a quarter of its capacity absorbs its successor (or predecessor) in its subtree if they fit.
+		 * returns the new root of the subtree
+		 * complexity: O(logn).
+		 */
+		private Block delete(Block block, int k) {
+			if (block == null) {
+				return null;
+			}
+			if (k < block.keys[0]) {
+				block.left = delete(block.left, k);
+			}
+			else if (k > block.keys[block.count - 1]) {
+				block.right = delete(block.right, k);
+			}
+			else {
+				int index = block.lowerBound(k);
+				if (block.keys[index] != k) { // the key is not in the tree
+					return block;
+				}
+				changed = true;
+				block.remove(index);
+				if (block.count == 0) {
+					return concatenate(block.left, block.right);
+				}
+				if (block.count < capacity / 4) {
+					if ((block.right != null) && (block.count + first(block.right).count <= capacity)) {
+						block.right = removeFirst(block.right);
+						block.append(detached);
+					}
+					else if ((block.left != null) && (block.count + last(block.left).count <= capacity)) {
+						block.left = removeLast(block.left);
+						block.prepend(detached);
+					}
+					detached = null;
+				}
+			}
+			return avl.balance(block);
+		}
+		
+		/**
+		 * private Block removeFirst(Block block)
+		 *
+		 * unlinks the leftmost block of the subtree into 'detached'
+		 * returns the new root of the subtree
+		 * complexity: O(logn).
+		 */
+		private Block removeFirst(Block block) {
+			if (block.left == null) {
+				detached = block;
+				Block right = block.right;
+				block.right = null;
+				return right;
+			}
+			block.left = removeFirst(block.left);
+			return avl.balance(block);
+		}
+		
+		/**
+		 * private Block removeLast(Block block)
+		 *
+		 * unlinks the rightmost block of the subtree into 'detached'
+		 * returns the new root of the subtree
+		 * complexity: O(logn).
+		 */
+		private Block removeLast(Block block) {
+			if (block.right == null) {
+				detached = block;
+				Block left = block.left;
+				block.left = null;
+				return left;
+			}
+			block.right = removeLast(block.right);
+			return avl.balance(block);
+		}
+		
+		/**
+		 * private Block concatenate(Block l, Block r)
+		 *
+		 * links l and r (keys(l) < keys(r)) into one subtree, using the first block of r as the pivot
+		 * returns the root of the joined subtree
+		 * complexity: O(logn).
+		 */
+		private Block concatenate(Block l, Block r) {
+			if (r == null) {
+				return l;
+			}
+			r = removeFirst(r);
+			Block pivot = detached;
+			detached = null;
+			return avl.join(l, pivot, r);
+		}
+		
+		/**
+		 * public BlockAVLTree[] split(int x)
+		 *
+		 * splits the tree into 2 trees according to the key x.
+		 * Returns an array [t1, t2] with two trees. keys(t1) < x < keys(t2), the item with key x (if any) is dropped.
+		 * the block bounding x is cut in two, every other block is relinked as is.
+		 * postcondition: the tree itself is left empty
+		 * complexity: O(logn).
+		 */
+		public BlockAVLTree[] split(int x) {
+			splitBlocks(root, x);
+			BlockAVLTree[] result = new BlockAVLTree[2];
+			result[0] = new BlockAVLTree(capacity);
+			result[0].root = smaller;
+			result[1] = new BlockAVLTree(capacity);
+			result[1].root = larger;
+			smaller = null;
+			larger = null;
+			this.root = null;
+			return result;
+		}
+		
+		/**
+		 * private void splitBlocks(Block block, int x)
+		 *
+		 * splits the subtree into 'smaller' (keys < x) and 'larger' (keys > x)
+		 * complexity: O(logn).
+		 */
+		private void splitBlocks(Block block, int x) {
+			if (block == null) {
+				smaller = null;
+				larger = null;
+				return;
+			}
+			Block left = block.left;
+			Block right = block.right;
+			if (x < block.keys[0]) { // block and its right subtree are larger than x
+				splitBlocks(left, x);
+				larger = avl.join(larger, block, right);
+			}
+			else if (x > block.keys[block.count - 1]) { // block and its left subtree are smaller than x
+				splitBlocks(right, x);
+				smaller = avl.join(left, block, smaller);
+			}
+			else { // cut the block at x
+				int index = block.lowerBound(x);
+				Block upper = block.cut(index);
+				if ((upper.count > 0) && (upper.keys[0] == x)) { // drop x
+					upper.remove(0);
+				}
+				smaller = (block.count > 0) ? avl.join(left, block, null) : left;
+				larger = (upper.count > 0) ? avl.join(null, upper, right) : right;
+			}
+		}
+		
+		/**
+		 * public int join(int k, String i, BlockAVLTree t)
+		 *
+		 * joins t and a new item with key k and info i with the tree, k becomes a block of its own.
+		 * Returns the complexity of the operation (|tree.rank - t.rank| + 1).
+		 * precondition: keys(t) < k < keys() or keys() < k < keys(t), t has the same block capacity.
+		 * complexity: O(|tree.rank - t.rank| + 1).
+		 */
+		public int join(int k, String i, BlockAVLTree t) {
+			int complexity = Math.abs(JoinAVL.rank(root) - JoinAVL.rank(t.root)) + 1;
+			Block x = new Block(capacity);
+			x.add(0, k, i);
+			if ((empty() && (t.empty() || (k < t.root.keys[0]))) || (!empty() && (k > root.keys[0]))) { // the order is tree -> x -> t
+				root = avl.join(this.root, x, t.root);
+			}
+			else { // the order is t -> x -> tree
+				root = avl.join(t.root, x, this.root);
+			}
+			t.root = null;
+			return complexity;
+		}
+		
+		/**
+		 * public int[] keysToArray()
+		 *
+		 * Returns a sorted array which contains all keys in the tree,
+		 * or an empty array if the tree is empty.
+		 * complexity: O(n).
+		 */
+		public int[] keysToArray() {
+			int[] result = new int[size()];
+			keysToArray(root, result, 0);
+			return result;
+		}
+		
+		private static int keysToArray(Block block, int[] keysArray, int index) {
+			while (block != null) {
+				index = keysToArray(block.left, keysArray, index);
+				System.arraycopy(block.keys, 0, keysArray, index, block.count);
+				index += block.count;
+				block = block.right;
+			}
+			return index;
+		}
+		
+		/**
+		 * public String[] infoToArray()
+		 *
+		 * Returns an array which contains all info in the tree,
+		 * sorted by their respective keys,
+		 * or an empty array if the tree is empty.
+		 * complexity: O(n).
+		 */
+		public String[] infoToArray() {
+			String[] result = new String[size()];
+			infoToArray(root, result, 0);
+			return result;
+		}
+		
+		private static int infoToArray(Block block, String[] infoArray, int index) {
+			while (block != null) {
+				index = infoToArray(block.left, infoArray, index);
+				System.arraycopy(block.infos, 0, infoArray, index, block.count);
+				index += block.count;
+				block = block.right;
+			}
+			return index;
+		}
+		
+		/**
+		 * public void verify()
+		 *
+		 * checks that every block is non empty, sorted and between its subtrees,
+		 * and the AVL rule, rank, size and block count of every block.
+		 * throws IllegalStateException describing the first violation found.
+		 * complexity: O(n).
+		 */
+		public void verify() {
+			verifyBlock(root, Long.MIN_VALUE, Long.MAX_VALUE);
+		}
+		
+		private void verifyBlock(Block block, long lo, long hi) {
+			if (block == null) {
+				return;
+			}
+			if ((block.count < 1) || (block.count > capacity)) {
+				throw new IllegalStateException("block at " + block.keys[0] + " holds " + block.count + " items");
+			}
+			for (int j = 0; j < block.count; j++) {
+				if ((block.keys[j] <= lo) || (block.keys[j] >= hi) || ((j > 0) && (block.keys[j - 1] >= block.keys[j]))) {
+					throw new IllegalStateException("key " + block.keys[j] + " out of order in the block at " + block.keys[0]);
+				}
+			}
+			verifyBlock(block.left, lo, block.keys[0]);
+			verifyBlock(block.right, block.keys[block.count - 1], hi);
+			int difference = JoinAVL.rank(block.left) - JoinAVL.rank(block.right);
+			if ((difference < -1) || (difference > 1)) {
+				throw new IllegalStateException("block at " + block.keys[0] + " is unbalanced: " + JoinAVL.rank(block.left) + "," + JoinAVL.rank(block.right));
+			}
+			if ((block.rank != Math.max(JoinAVL.rank(block.left), JoinAVL.rank(block.right)) + 1)
+					|| (block.size != size(block.left) + size(block.right) + block.count)
+					|| (block.blocks != blocks(block.left) + blocks(block.right) + 1)) {
+				throw new IllegalStateException("block at " + block.keys[0] + " has a wrong rank, size or block count");
+			}
+		}
+		
+		private static int size(Block block) {
+			return (block == null) ? 0 : block.size;
+		}
+		
+		private static int blocks(Block block) {
+			return (block == null) ? 0 : block.blocks;
+		}
+		
+		private static Block first(Block block) {
+			while (block.left != null) {
+				block = block.left;
+			}
+			return block;
+		}
+		
+		private static Block last(Block block) {
+			while (block.right != null) {
+				block = block.right;
+			}
+			return block;
+		}
+		
+		/**
+		 * private static class Block
+		 *
+		 * a node holding 'count' items sorted by key in fixed size arrays,
+		 * a missing child is null (rank -1, size 0)
+		 */
+		private static class Block extends JoinNode<Block> {
+			private final int[] keys;
+			private final String[] infos;
+			private int count;
+			private int size; // items in the subtree
+			private int blocks; // blocks in the subtree
+			
+			private Block(int capacity) {
+				this.keys = new int[capacity];
+				this.infos = new String[capacity];
+				this.rank = 0;
+			}
+			
+			void update() {
+				size = size(left) + size(right) + count;
+				blocks = blocks(left) + blocks(right) + 1;
+			}
+			
+			/**
+			 * private int lowerBound(int k)
+			 *
+			 * returns the index of the first key >= k, or count if there is none.
+			 * halves the candidate range with a conditional move instead of a branch,
+			 * so the loop runs the same log(count) steps for every k.
+			 * complexity: O(log count).
+			 */
+			private int lowerBound(int k) {
+				int base = 0;
+				int n = count;
+				while (n > 1) {
+					int half = n >>> 1;
+					base = (keys[base + half] < k) ? base + half : base;
+					n -= half;
+				}
+				return base + (((n == 1) && (keys[base] < k)) ? 1 : 0);
+			}
+			
+			private void add(int index, int k, String i) {
+				System.arraycopy(keys, index, keys, index + 1, count - index);
+				System.arraycopy(infos, index, infos, index + 1, count - index);
+				keys[index] = k;
+				infos[index] = i;
+				count++;
+			}
+			
+			private void remove(int index) {
+				System.arraycopy(keys, index + 1, keys, index, count - index - 1);
+				System.arraycopy(infos, index + 1, infos, index, count - index - 1);
+				count--;
+				infos[count] = null;
+			}
+			
+			/**
+			 * private Block cut(int from)
+			 *
+			 * moves the items from index 'from' on into a new block and returns it
+			 * complexity: O(capacity).
+			 */
+			private Block cut(int from) {
+				Block upper = new Block(keys.length);
+				upper.count = count - from;
+				System.arraycopy(keys, from, upper.keys, 0, upper.count);
+				System.arraycopy(infos, from, upper.infos, 0, upper.count);
+				Arrays.fill(infos, from, count, null);
+				count = from;
+				return upper;
+			}
+			
+			private void append(Block next) {
+				System.arraycopy(next.keys, 0, keys, count, next.count);
+				System.arraycopy(next.infos, 0, infos, count, next.count);
+				count += next.count;
+			}
+			
+			private void prepend(Block previous) {
+				System.arraycopy(keys, 0, keys, previous.count, count);
+				System.arraycopy(infos, 0, infos, previous.count, count);
+				System.arraycopy(previous.keys, 0, keys, 0, previous.count);
+				System.arraycopy(previous.infos, 0, infos, 0, previous.count);
+				count += previous.count;
+			}
+		}
+	}
+	
+	/**
+	 * public interface BalancingPolicy
+	 *
+	 * the balancing scheme of a PolicyTree. a scheme is defined by its join alone: insert, delete and split
+	 * of PolicyTree are written with join, so every scheme gets the same split/join/keysToArray API.
+	 * a scheme keeps its balance information in the rank and red fields of the nodes,
+	 * and counts its rotations and recolors with tree.rebalanced().
+	 */
+	public interface BalancingPolicy {
+		public void initialize(PolicyTree.Node x); // sets up a new node before it is first joined
+		public PolicyTree.Node join(PolicyTree tree, PolicyTree.Node l, PolicyTree.Node x, PolicyTree.Node r); // links l, x and r (keys(l) < x < keys(r)) of tree, returns the root
+		public void verify(PolicyTree.Node root); // throws IllegalStateException if the subtree breaks the scheme's rule
+	}
+	
+	/**
+	 * public enum BalancingPolicies
+	 *
+	 * AVL: rank is the height, joins are those of JoinAVL, the engine of TopDownAVLTree and BlockAVLTree,
+	 * counting rotations (a double as 2) and rank changes.
+	 * RED_BLACK: rank is the black height, red roots are blackened before a join and the red-red
+	 * violation left by hanging x is fixed by recoloring and one rotation per level on the way up,
+	 * counting rotations and color changes, also those a later join of the same operation undoes
+	 * (insert and delete rejoin every node of the path, each of them hung red and blackened again).
+	 * TREAP: rank is a priority hashed from the key, every node has a higher priority than its children,
+	 * counting the levels x sinks below the root of the join, each one a rotation of a rotating treap.
+	 */
+	public enum BalancingPolicies implements BalancingPolicy {
+		AVL {
+			public PolicyTree.Node join(PolicyTree tree, PolicyTree.Node l, PolicyTree.Node x, PolicyTree.Node r) {
+				int rank = x.rank;
+				PolicyTree.Node root = tree.avl.join(l, x, r);
+				if (x.rank != rank) { // JoinAVL counts the rank changes of balance only, not the placing of x
+					tree.rebalanced();
+				}
+				return root;
+			}
+			
+			public void verify(PolicyTree.Node root) {
+				if (root == null) {
+					return;
+				}
+				verify(root.left);
+				verify(root.right);
+				int left = JoinAVL.rank(root.left);
+				int right = JoinAVL.rank(root.right);
+				if ((root.rank != Math.max(left, right) + 1) || (Math.abs(left - right) > 1)) {
+					throw new IllegalStateException("AVL node " + root.key + " has height " + root.rank + " over " + left + "," + right);
+				}
+			}
+		},
+		
+		RED_BLACK {
+			public void initialize(PolicyTree.Node x) {
+				x.red = true; // as every join hangs x red
+			}
+			
+			public PolicyTree.Node join(PolicyTree tree, PolicyTree.Node l, PolicyTree.Node x, PolicyTree.Node r) {
+				blacken(tree, l);
+				blacken(tree, r);
+				if (blackHeight(l) > blackHeight(r)) {
+					PolicyTree.Node root = joinRight(tree, l, x, r);
+					if (root.red && isRed(root.right)) { // the violation reached the root
+						blacken(tree, root);
+					}
+					return root;
+				}
+				if (blackHeight(r) > blackHeight(l)) {
+					PolicyTree.Node root = joinLeft(tree, l, x, r);
+					if (root.red && isRed(root.left)) {
+						blacken(tree, root);
+					}
+					return root;
+				}
+				x.left = l;
+				x.right = r;
+				redden(tree, x); // both roots are black
+				fix(x);
+				return x;
+			}
+			
+			/**
+			 * hangs a red x on the right spine of l at the first black node of r's black height,
+			 * a black node whose right child and right grandchild are red rotates left
+			 */
+			private PolicyTree.Node joinRight(PolicyTree tree, PolicyTree.Node l, PolicyTree.Node x, PolicyTree.Node r) {
+				if (!isRed(l) && (blackHeight(l) == blackHeight(r))) {
+					x.left = l;
+					x.right = r;
+					redden(tree, x);
+					fix(x);
+					return x;
+				}
+				l.right = joinRight(tree, l.right, x, r);
+				if (!l.red && isRed(l.right) && isRed(l.right.right)) {
+					blacken(tree, l.right.right);
+					PolicyTree.Node root = JoinNode.rotateLeft(l);
+					tree.rebalanced();
+					fix(root.left);
+					fix(root);
+					return root;
+				}
+				fix(l);
+				return l;
+			}
+			
+			private PolicyTree.Node joinLeft(PolicyTree tree, PolicyTree.Node l, PolicyTree.Node x, PolicyTree.Node r) {
+				if (!isRed(r) && (blackHeight(r) == blackHeight(l))) {
+					x.left = l;
+					x.right = r;
+					redden(tree, x);
+					fix(x);
+					return x;
+				}
+				r.left = joinLeft(tree, l, x, r.left);
+				if (!r.red && isRed(r.left) && isRed(r.left.left)) {
+					blacken(tree, r.left.left);
+					PolicyTree.Node root = JoinNode.rotateRight(r);
+					tree.rebalanced();
+					fix(root.right);
+					fix(root);
+					return root;
+				}
+				fix(r);
+				return r;
+			}
+			
+			void fix(PolicyTree.Node node) {
+				node.rank = blackHeight(node.left) + (node.red ? 0 : 1);
+				PolicyTree.update(node);
+			}
+			
+			private void blacken(PolicyTree tree, PolicyTree.Node node) {
+				if ((node != null) && node.red) {
+					node.red = false;
+					node.rank++;
+					tree.rebalanced();
+				}
+			}
+			
+			private void redden(PolicyTree tree, PolicyTree.Node node) { // the rank is left to fix
+				if (!node.red) {
+					node.red = true;
+					tree.rebalanced();
+				}
+			}
+			
+			private boolean isRed(PolicyTree.Node node) {
+				return (node != null) && node.red;
+			}
+			
+			private int blackHeight(PolicyTree.Node node) {
+				return (node == null) ? 0 : node.rank;
+			}
+			
+			public void verify(PolicyTree.Node root) {
+				if (root == null) {
+					return;
+				}
+				verify(root.left);
+				verify(root.right);
+				if (root.red && (isRed(root.left) || isRed(root.right))) {
+					throw new IllegalStateException("red node " + root.key + " has a red child");
+				}
+				if ((blackHeight(root.left) != blackHeight(root.right)) || (root.rank != blackHeight(root.left) + (root.red ? 0 : 1))) {
+					throw new IllegalStateException("red-black node " + root.key + " has black height " + root.rank + " over " + blackHeight(root.left) + "," + blackHeight(root.right));
+				}
+			}
+		},
+		
+		TREAP {
+			public void initialize(PolicyTree.Node x) {
+				int h = x.key * 0x9E3779B9; // a fixed pseudo random priority, the shape depends on the keys only
+				h ^= h >>> 16;
+				h *= 0x85EBCA6B;
+				h ^= h >>> 13;
+				x.rank = h;
+			}
+			
+			public PolicyTree.Node join(PolicyTree tree, PolicyTree.Node l, PolicyTree.Node x, PolicyTree.Node r) {
+				if ((x.rank >= priority(l)) && (x.rank >= priority(r))) {
+					x.left = l;
+					x.right = r;
+					PolicyTree.update(x);
+					return x;
+				}
+				tree.rebalanced(); // x sinks one level
+				if (priority(l) > priority(r)) {
+					l.right = join(tree, l.right, x, r);
+					PolicyTree.update(l);
+					return l;
+				}
+				r.left = join(tree, l, x, r.left);
+				PolicyTree.update(r);
+				return r;
+			}
+			
+			private int priority(PolicyTree.Node node) {
+				return (node == null) ? Integer.MIN_VALUE : node.rank;
+			}
+			
+			public void verify(PolicyTree.Node root) {
+				if (root == null) {
+					return;
+				}
+				verify(root.left);
+				verify(root.right);
+				if ((priority(root.left) > root.rank) || (priority(root.right) > root.rank)) {
+					throw new IllegalStateException("treap node " + root.key + " has a child of higher priority");
+				}
+			}
+		};
+		
+		public void initialize(PolicyTree.Node x) {
+		}
+	}
+	
+	/**
+	 * public static class PolicyTree
+	 *
+	 * A parent-free binary search tree with distinct integer keys and info whose balancing scheme is
+	 * a BalancingPolicy. every operation is built on the scheme's join:
+	 * insert and delete rejoin the search path bottom up, split joins the ancestors on either side,
+	 * so each costs O(logn) for the AVL, red-black and treap (expected) schemes.
+	 */
+	public static class PolicyTree {
+		
+		private final BalancingPolicy policy;
+		private final JoinAVL avl = new JoinAVL(true); // the joins of the AVL scheme, and the rebalancing count of every scheme
+		private Node root;
+		private Node detached; // the node removed by removeLast
+		private Node smaller; // the results of splitNodes
+		private Node larger;
+		
+		public PolicyTree(BalancingPolicy policy) { // Constructor
+			this.policy = policy;
+			this.root = null;
+		}
+		
+		public BalancingPolicy getPolicy() {
+			return policy;
+		}
+		
+		/**
+		 * public boolean empty()
+		 *
+		 * returns true if and only if the tree is empty
+		 * complexity: O(1).
+		 */
+		public boolean empty() {
+			return root == null;
+		}
+		
+		/**
+		 * public int size()
+		 *
+		 * Returns the number of nodes in the tree.
+		 * complexity: O(1).
+		 */
+		public int size() {
+			return size(root);
+		}
+		
+		/**
+		 * public int height()
+		 *
+		 * Returns the height of the tree, -1 if it is empty.
+		 * complexity: O(n).
+		 */
+		public int height() {
+			return height(root);
+		}
+		
+		private static int height(Node node) {
+			return (node == null) ? -1 : Math.max(height(node.left), height(node.right)) + 1;
+		}
+		
+		/**
+		 * public String search(int k)
+		 *
+		 * returns the info of an item with key k if it exists in the tree
+		 * otherwise, returns null
+		 * complexity: O(logn).
+		 */
+		public String search(int k) {
+			Node node = find(k);
+			return (node == null) ? null : node.value;
+		}
+		
+		private Node find(int k) {
+			Node node = root;
+			while ((node != null) && (node.key != k)) {
+				node = (k < node.key) ? node.left : node.right;
+			}
+			return node;
+		}
+		
+		/**
+		 * public int insert(int k, String i)
+		 *
+		 * inserts an item with key k and info i to the tree.
+		 * returns the number of rebalancing operations of the scheme's joins (see BalancingPolicies),
+		 * or -1 if an item with key k already exists in the tree.
+		 * complexity: O(logn).
+		 */
+		public int insert(int k, String i) {
+			if (find(k) != null) {
+				return -1;
+			}
+			Node x = new Node(k, i);
+			policy.initialize(x);
+			avl.rebalancing = 0;
+			root = insert(root, x);
+			return avl.rebalancing;
+		}
+		
+		private Node insert(Node node, Node x) {
+			if (node == null) {
+				return policy.join(this, null, x, null);
+			}
+			Node left = node.left;
+			Node right = node.right;
+			if (x.key < node.key) {
+				return policy.join(this, insert(left, x), node, right);
+			}
+			return policy.join(this, left, node, insert(right, x));
+		}
+		
+		/**
+		 * public int delete(int k)
+		 *
+		 * deletes an item with key k from the tree, if it is there.
+		 * returns the number of rebalancing operations of the scheme's joins,
+		 * or -1 if an item with key k was not found in the tree.
+		 * complexity: O(logn).
+		 */
+		public int delete(int k) {
+			if (find(k) == null) {
+				return -1;
+			}
+			avl.rebalancing = 0;
+			root = delete(root, k);
+			return avl.rebalancing;
+		}
+		
+		private Node delete(Node node, int k) {
+			Node left = node.left;
+			Node right = node.right;
+			if (k == node.key) {
+				return concatenate(left, right);
+			}
+			if (k < node.key) {
+				return policy.join(this, delete(left, k), node, right);
+			}
+			return policy.join(this, left, node, delete(right, k));
+		}
+		
+		/**
+		 * private Node concatenate(Node l, Node r)
+		 *
+		 * links l and r (keys(l) < keys(r)) with the last node of l as the pivot
+		 * complexity: O(logn).
+		 */
+		private Node concatenate(Node l, Node r) {
+			if (l == null) {
+				return r;
+			}
+			l = removeLast(l);
+			Node pivot = detached;
+			detached = null;
+			return policy.join(this, l, pivot, r);
+		}
+		
+		private Node removeLast(Node node) {
+			Node left = node.left;
+			Node right = node.right;
+			if (right == null) {
+				detached = node;
+				return left;
+			}
+			return policy.join(this, left, node, removeLast(right));
+		}
+		
+		/**
+		 * public PolicyTree[] split(int x)
+		 *
+		 * splits the tree into 2 trees according to the key x.
+		 * Returns an array [t1, t2] with two trees. keys(t1) < x < keys(t2), the item with key x (if any) is dropped.
+		 * postcondition: the tree itself is left empty
+		 * complexity: O(logn).
+		 */
+		public PolicyTree[] split(int x) {
+			splitNodes(root, x);
+			PolicyTree[] result = new PolicyTree[2];
+			result[0] = new PolicyTree(policy);
+			result[0].root = smaller;
+			result[1] = new PolicyTree(policy);
+			result[1].root = larger;
+			smaller = null;
+			larger = null;
+			this.root = null;
+			return result;
+		}
+		
+		private void splitNodes(Node node, int x) {
+			if (node == null) {
+				smaller = null;
+				larger = null;
+				return;
+			}
+			Node left = node.left;
+			Node right = node.right;
+			if (x == node.key) {
+				smaller = left;
+				larger = right;
+			}
+			else if (x < node.key) { // node and its right subtree are larger than x
+				splitNodes(left, x);
+				larger = policy.join(this, larger, node, right);
+			}
+			else { // node and its left subtree are smaller than x
+				splitNodes(right, x);
+				smaller = policy.join(this, left, node, smaller);
+			}
+		}
+		
+		/**
+		 * public int join(int k, String i, PolicyTree t)
+		 *
+		 * joins t and a new item with key k and info i with the tree.
+		 * Returns the number of rebalancing operations of the scheme's join.
+		 * precondition: keys(t) < k < keys() or keys() < k < keys(t), t has the same policy.
+		 * postcondition: t is left empty
+		 * complexity: O(logn).
+		 */
+		public int join(int k, String i, PolicyTree t) {
+			Node x = new Node(k, i);
+			policy.initialize(x);
+			avl.rebalancing = 0;
+			if ((empty() && (t.empty() || (k < t.root.key))) || (!empty() && (k > root.key))) { // the order is tree -> x -> t
+				root = policy.join(this, this.root, x, t.root);
+			}
+			else { // the order is t -> x -> tree
+				root = policy.join(this, t.root, x, this.root);
+			}
+			t.root = null;
+			return avl.rebalancing;
+		}
+		
+		/**
+		 * public int[] keysToArray()
+		 *
+		 * Returns a sorted array which contains all keys in the tree,
+		 * or an empty array if the tree is empty.
+		 * complexity: O(n).
+		 */
+		public int[] keysToArray() {
+			int[] result = new int[size()];
+			keysToArray(root, result, 0);
+			return result;
+		}
+		
+		private static int keysToArray(Node node, int[] keysArray, int index) {
+			while (node != null) {
+				index = keysToArray(node.left, keysArray, index);
+				keysArray[index++] = node.key;
+				node = node.right;
+			}
+			return index;
+		}
+		
+		/**
+		 * public String[] infoToArray()
+		 *
+		 * Returns an array which contains all info in the tree,
+		 * sorted by their respective keys,
+		 * or an empty array if the tree is empty.
+		 * complexity: O(n).
+		 */
+		public String[] infoToArray() {
+			String[] result = new String[size()];
+			infoToArray(root, result, 0);
+			return result;
+		}
+		
+		private static int infoToArray(Node node, String[] infoArray, int index) {
+			while (node != null) {
+				index = infoToArray(node.left, infoArray, index);
+				infoArray[index++] = node.value;
+				node = node.right;
+			}
+			return index;
+		}
+		
+		/**
+		 * public void verify()
+		 *
+		 * checks the BST order and sizes, then the rule of the balancing scheme.
+		 * throws IllegalStateException describing the first violation found.
+		 * complexity: O(n).
+		 */
+		public void verify() {
+			verifyNode(root, Long.MIN_VALUE, Long.MAX_VALUE);
+			policy.verify(root);
+		}
+		
+		private static void verifyNode(Node node, long low, long high) {
+			if (node == null) {
+				return;
+			}
+			if ((node.key <= low) || (node.key >= high)) {
+				throw new IllegalStateException("key " + node.key + " is out of order, expected in (" + low + ", " + high + ")");
+			}
+			verifyNode(node.left, low, node.key);
+			verifyNode(node.right, node.key, high);
+			if (node.size != size(node.left) + size(node.right) + 1) {
+				throw new IllegalStateException("node " + node.key + " has size " + node.size);
+			}
+		}
+		
+		/**
+		 * void rebalanced()
+		 *
+		 * counts a rotation or recolor of the scheme's join
+		 * complexity: O(1).
+		 */
+		void rebalanced() {
+			avl.rebalancing++;
+		}
+		
+		/**
+		 * public static void update(Node node)
+		 *
+		 * recomputes the size of 'node' from its children, for the balancing schemes
+		 * complexity: O(1).
+		 */
+		public static void update(Node node) {
+			node.update();
+		}
+		
+		private static int size(Node node) {
+			return (node == null) ? 0 : node.size;
+		}
+		
+		/**
+		 * public static class Node
+		 *
+		 * a node without parent pointer, a missing child is null.
+		 * rank and red belong to the balancing scheme.
+		 */
+		public static class Node extends JoinNode<Node> {
+			private final int key;
+			private final String value;
+			boolean red;
+			private int size;
+			
+			private Node(int key, String value) {
+				this.key = key;
+				this.value = value;
+				this.size = 1;
+			}
+			
+			void update() {
+				size = size(left) + size(right) + 1;
+			}
+			
+			public int getKey() {
+				return key;
+			}
+			
+			public String getValue() {
+				return value;
+			}
+			
+			public Node getLeft() {
+				return left;
+			}
+			
+			public Node getRight() {
+				return right;
+			}
+			
+			public int getRank() {
+				return rank;
+			}
+			
+			public boolean isRed() {
+				return red;
+			}
+			
+			public int getSize() {
+				return size;
+			}
+		}
+	}
+	
+	/**
+	 * public static class PolicyBenchmark
+	 *
+	 * Runs the same workloads over a PolicyTree of every BalancingPolicies scheme and prints,
+	 * per scheme, the average nanoseconds per operation and the height after the random inserts.
+	 * workloads: random inserts, random searches (half of them misses), alternating random inserts
+	 * and deletes, sequential inserts, and split/join round trips. the keys are drawn from one seed.
+	 * run from the command line: java AVLTree$PolicyBenchmark [n] [seed]
+	 */
+	public static class PolicyBenchmark {
+		
+		private static final int ROUNDS = 3; // the best of ROUNDS runs is reported
+		
+		public static void main(String[] args) {
+			int n = (args.length > 0) ? Integer.parseInt(args[0]) : 1 << 20;
+			long seed = (args.length > 1) ? Long.parseLong(args[1]) : 1;
+			SplittableRandom random = new SplittableRandom(seed);
+			int[] keys = random.ints(n).toArray();
+			int[] probes = new int[n];
+			for (int i = 0; i < n; i++) { // half hits, half (almost surely) misses
+				probes[i] = ((i & 1) == 0) ? keys[random.nextInt(n)] : random.nextInt();
+			}
+			System.out.println("n=" + n + ", ns/op: insert, search, insert+delete, sequential insert, split+join; height");
+			for (BalancingPolicies policy : BalancingPolicies.values()) {
+				double[] best = new double[5];
+				Arrays.fill(best, Double.MAX_VALUE);
+				int height = 0;
+				for (int round = 0; round < ROUNDS; round++) {
+					double[] times = run(policy, keys, probes);
+					for (int w = 0; w < best.length; w++) {
+						best[w] = Math.min(best[w], times[w]);
+					}
+					height = (int) times[5];
+				}
+				System.out.printf("%-10s %8.0f %8.0f %8.0f %8.0f %8.0f %4d%n", policy, best[0], best[1], best[2], best[3], best[4], height);
+			}
+		}
+		
+		/**
+		 * private static double[] run(BalancingPolicy policy, int[] keys, int[] probes)
+		 *
+		 * returns the nanoseconds per operation of every workload, and the height
+		 */
+		private static double[] run(BalancingPolicy policy, int[] keys, int[] probes) {
+			int n = keys.length;
+			double[] result = new double[6];
+			PolicyTree tree = new PolicyTree(policy);
+			long start = System.nanoTime();
+			for (int k : keys) {
+				tree.insert(k, "");
+			}
+			result[0] = (double) (System.nanoTime() - start) / n;
+			result[5] = tree.height();
+			long found = 0;
+			start = System.nanoTime();
+			for (int k : probes) {
+				if (tree.search(k) != null) {
+					found++;
+				}
+			}
+			result[1] = (double) (System.nanoTime() - start) / n;
+			start = System.nanoTime();
+			for (int i = 0; i < n; i++) { // the size stays n
+				tree.insert(probes[i], "");
+				tree.delete(keys[i]);
+			}
+			result[2] = (double) (System.nanoTime() - start) / (2 * n);
+			PolicyTree sequential = new PolicyTree(policy);
+			start = System.nanoTime();
+			for (int i = 0; i < n; i++) {
+				sequential.insert(i, "");
+			}
+			result[3] = (double) (System.nanoTime() - start) / n;
+			start = System.nanoTime();
+			int rounds = Math.max(1, n / 64);
+			for (int i = 0; i < rounds; i++) {
+				int x = Math.floorMod(probes[i], n); // split drops x, join puts it back
+				PolicyTree[] halves = sequential.split(x);
+				halves[0].join(x, "", halves[1]);
+				sequential = halves[0];
+			}
+			result[4] = (double) (System.nanoTime() - start) / rounds;
+			if (found < 0) { // keeps the searches alive
+				System.out.println(found);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * public static class TieredAVLTree
+	 *
+	 * A map with distinct integer keys and info that keeps at most a fixed number of items on the heap.
+	 * the keys are range-partitioned into segments, each an AVLTree of up to 2 * segmentCapacity items.
+	 * the directory of segment lower bounds stays in memory, and a cold segment is written to a spill file
+	 * and left in the directory as a stub (its offset and length in the file).
+	 * an operation routes its key through the directory and pages the segment in (bulkLoad from the file)
+	 * if it is a stub, then runs the usual AVLTree operation on it. when more than maxResidentItems items are
+	 * in memory, the least recently used segments are written back (only if they changed) and dropped.
+	 * a full segment splits at its median with AVLTree.split, an emptied segment is removed.
+	 * rewritten segments leave dead copies in the file, which is compacted when they outweigh the live ones.
+	 * not thread safe. close() deletes the spill file.
+	 */
+	public static class TieredAVLTree implements AutoCloseable {
+		
+		private static final long COMPACT_MIN_BYTES = 1 << 20; // dead bytes below this are never compacted
+		
+		private final Path file;
+		private FileChannel channel;
+		private final int maxResidentItems;
+		private final int segmentCapacity;
+		private Segment[] segments; // in key order
+		private int[] lowerBounds; // lowerBounds[0] is Integer.MIN_VALUE
+		private Segment newest; // the LRU list of the resident segments
+		private Segment oldest;
+		private int size;
+		private int residentItems;
+		private long fileEnd; // where the next segment is written
+		private long liveBytes; // bytes of the latest copies of the spilled segments
+		private long deadBytes;
+		private long pageIns;
+		private long pageOuts;
+		
+		/**
+		 * public TieredAVLTree(Path file, int maxResidentItems, int segmentCapacity)
+		 *
+		 * creates an empty map spilling into 'file' (created or truncated), keeping up to maxResidentItems items
+		 * on the heap in segments of segmentCapacity to 2 * segmentCapacity items.
+		 * maxResidentItems must hold at least 4 full segments.
+		 */
+		public TieredAVLTree(Path file, int maxResidentItems, int segmentCapacity) { // Constructor
+			if (segmentCapacity < 2) {
+				throw new IllegalArgumentException("segment capacity must be at least 2, got " + segmentCapacity);
+			}
+			if (maxResidentItems < 8L * segmentCapacity) {
+				throw new IllegalArgumentException("maxResidentItems must hold 4 full segments (" + 8L * segmentCapacity + "), got " + maxResidentItems);
+			}
+			this.file = file;
+			this.maxResidentItems = maxResidentItems;
+			this.segmentCapacity = segmentCapacity;
+			this.channel = open(file);
+			Segment first = new Segment();
+			first.tree = new AVLTree();
+			this.segments = new Segment[] {first};
+			this.lowerBounds = new int[] {Integer.MIN_VALUE};
+			use(first);
+		}
+		
+		/**
+		 * public int size()
+		 *
+		 * complexity: O(1).
+		 */
+		public int size() {
+			return this.size;
+		}
+		
+		public boolean empty() {
+			return this.size == 0;
+		}
+		
+		/**
+		 * public int getResidentItems()
+		 *
+		 * returns the number of items on the heap, at most maxResidentItems between operations
+		 * complexity: O(1).
+		 */
+		public int getResidentItems() {
+			return this.residentItems;
+		}
+		
+		/**
+		 * public int segmentCount()
+		 *
+		 * complexity: O(1).
+		 */
+		public int segmentCount() {
+			return segments.length;
+		}
+		
+		/**
+		 * public int spilledSegments()
+		 *
+		 * returns the number of segments that are stubs
+		 * complexity: O(number of segments).
+		 */
+		public int spilledSegments() {
+			int spilled = 0;
+			for (Segment segment : segments) {
+				if (segment.tree == null) {
+					spilled++;
+				}
+			}
+			return spilled;
+		}
+		
+		public long getPageIns() {
+			return this.pageIns;
+		}
+		
+		public long getPageOuts() {
+			return this.pageOuts;
+		}
+		
+		/**
+		 * public long fileLength()
+		 *
+		 * returns the bytes written to the spill file, live and dead
+		 * complexity: O(1).
+		 */
+		public long fileLength() {
+			return this.fileEnd;
+		}
+		
+		/**
+		 * public String search(int k)
+		 *
+		 * returns the info of the item with key k, or null if it is not in the map
+		 * complexity: O(log(number of segments) + log(segmentCapacity)), plus O(segmentCapacity) to page a segment in.
+		 */
+		public String search(int k) {
+			return resident(segmentIndex(k)).search(k);
+		}
+		
+		/**
+		 * public int insert(int k, String i)
+		 *
+		 * inserts into the segment of k, returns as AVLTree.insert
+		 * complexity: O(log(number of segments) + log(segmentCapacity)), plus O(segmentCapacity) per page in or out,
+		 * and O(number of segments) when a segment splits.
+		 */
+		public int insert(int k, String i) {
+			int index = segmentIndex(k);
+			Segment segment = segments[index];
+			int rebalancing = resident(index).insert(k, i);
+			if (rebalancing >= 0) {
+				segment.dirty = true;
+				size++;
+				residentItems++;
+				if (segment.tree.size() > 2 * segmentCapacity) {
+					splitSegment(index);
+				}
+				evict();
+			}
+			return rebalancing;
+		}
+		
+		/**
+		 * public int delete(int k)
+		 *
+		 * deletes from the segment of k, returns as AVLTree.delete
+		 * complexity: as insert(k, i).
+		 */
+		public int delete(int k) {
+			int index = segmentIndex(k);
+			Segment segment = segments[index];
+			int rebalancing = resident(index).delete(k);
+			if (rebalancing >= 0) {
+				segment.dirty = true;
+				size--;
+				residentItems--;
+				if (segment.tree.empty() && (segments.length > 1)) {
+					removeSegment(index);
+				}
+			}
+			return rebalancing;
+		}
+		
+		/**
+		 * public int[] keysToArray()
+		 *
+		 * Returns a sorted array of all the keys. stubs are read from the file without being paged in.
+		 * complexity: O(n) plus the reads of the spilled segments.
+		 */
+		public int[] keysToArray() {
+			int[] result = new int[size];
+			int index = 0;
+			for (Segment segment : segments) {
+				int[] keys = (segment.tree != null) ? segment.tree.keysToArray() : read(segment).keys;
+				System.arraycopy(keys, 0, result, index, keys.length);
+				index += keys.length;
+			}
+			return result;
+		}
+		
+		/**
+		 * public String[] infoToArray()
+		 *
+		 * Returns all the info sorted by key, as keysToArray()
+		 * complexity: O(n) plus the reads of the spilled segments.
+		 */
+		public String[] infoToArray() {
+			String[] result = new String[size];
+			int index = 0;
+			for (Segment segment : segments) {
+				String[] infos = (segment.tree != null) ? segment.tree.infoToArray() : read(segment).infos;
+				System.arraycopy(infos, 0, result, index, infos.length);
+				index += infos.length;
+			}
+			return result;
+		}
+		
+		/**
+		 * public void close()
+		 *
+		 * closes and deletes the spill file, the map must not be used afterwards
+		 */
+		public void close() {
+			try {
+				channel.close();
+				Files.deleteIfExists(file);
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		
+		/**
+		 * private AVLTree resident(int index)
+		 *
+		 * returns the tree of segment 'index', paging it in if it is a stub, and marks it most recently used
+		 * complexity: O(1), or O(segment size) to page in.
+		 */
+		private AVLTree resident(int index) {
+			Segment segment = segments[index];
+			if (segment.tree == null) {
+				Items items = read(segment);
+				segment.tree = new AVLTree();
+				segment.tree.bulkLoad(items.keys, items.infos, null);
+				residentItems += items.keys.length;
+				pageIns++;
+			}
+			else {
+				unlink(segment);
+			}
+			use(segment);
+			evict();
+			return segment.tree;
+		}
+		
+		/**
+		 * private void evict()
+		 *
+		 * writes back and drops the least recently used segments until the resident items fit the budget.
+		 * the most recently used segment always stays.
+		 * complexity: O(segment size) per evicted segment.
+		 */
+		private void evict() {
+			while ((residentItems > maxResidentItems) && (oldest != newest)) {
+				Segment segment = oldest;
+				unlink(segment);
+				if (segment.dirty || (segment.offset < 0)) {
+					write(segment);
+				}
+				residentItems -= segment.tree.size();
+				segment.tree = null;
+				pageOuts++;
+			}
+		}
+		
+		/**
+		 * private void splitSegment(int index)
+		 *
+		 * splits the resident segment 'index' at its median key, the upper half becomes a new segment
+		 * complexity: O(log(segment size) + number of segments).
+		 */
+		private void splitSegment(int index) {
+			Segment segment = segments[index];
+			IAVLNode median = segment.tree.select(segment.tree.size() / 2); // never the minimum, so both halves are not empty
+			int key = median.getKey();
+			String info = median.getValue();
+			AVLTree[] halves = segment.tree.split(key);
+			halves[1].insert(key, info);
+			segment.tree = halves[0];
+			Segment upper = new Segment();
+			upper.tree = halves[1];
+			if (segment.offset >= 0) { // the file copy holds both halves, it is no longer the segment's
+				deadBytes += segment.length;
+				liveBytes -= segment.length;
+				segment.offset = -1;
+			}
+			Segment[] grown = new Segment[segments.length + 1];
+			System.arraycopy(segments, 0, grown, 0, index + 1);
+			grown[index + 1] = upper;
+			System.arraycopy(segments, index + 1, grown, index + 2, segments.length - index - 1);
+			int[] bounds = new int[lowerBounds.length + 1];
+			System.arraycopy(lowerBounds, 0, bounds, 0, index + 1);
+			bounds[index + 1] = key;
+			System.arraycopy(lowerBounds, index + 1, bounds, index + 2, lowerBounds.length - index - 1);
+			segments = grown;
+			lowerBounds = bounds;
+			use(upper);
+		}
+		
+		/**
+		 * private void removeSegment(int index)
+		 *
+		 * removes the empty resident segment 'index', its key range joins the previous segment
+		 * (or the next one, for the first segment)
+		 * complexity: O(number of segments).
+		 */
+		private void removeSegment(int index) {
+			Segment segment = segments[index];
+			unlink(segment);
+			if (segment.offset >= 0) {
+				deadBytes += segment.length;
+				liveBytes -= segment.length;
+			}
+			Segment[] shrunk = new Segment[segments.length - 1];
+			System.arraycopy(segments, 0, shrunk, 0, index);
+			System.arraycopy(segments, index + 1, shrunk, index, segments.length - index - 1);
+			int[] bounds = new int[lowerBounds.length - 1];
+			System.arraycopy(lowerBounds, 0, bounds, 0, index);
+			System.arraycopy(lowerBounds, index + 1, bounds, index, lowerBounds.length - index - 1);
+			bounds[0] = Integer.MIN_VALUE;
+			segments = shrunk;
+			lowerBounds = bounds;
+		}
+		
+		/**
+		 * returns the index of the last segment whose lower bound is <= k
+		 * complexity: O(log(number of segments)).
+		 */
+		private int segmentIndex(int k) {
+			int low = 0;
+			int high = lowerBounds.length - 1;
+			while (low < high) {
+				int middle = (low + high + 1) >>> 1;
+				if (lowerBounds[middle] <= k) {
+					low = middle;
+				}
+				else {
+					high = middle - 1;
+				}
+			}
+			return low;
+		}
+		
+		/**
+		 * private void write(Segment segment)
+		 *
+		 * appends the resident segment to the file as [count, (key, info length or -1, UTF-8 info bytes)...]
+		 * and makes that copy the segment's, compacting the file first if it is mostly dead
+		 * complexity: O(segment size).
+		 */
+		private void write(Segment segment) {
+			if (segment.offset >= 0) {
+				deadBytes += segment.length;
+				liveBytes -= segment.length;
+			}
+			if ((deadBytes > liveBytes) && (deadBytes > COMPACT_MIN_BYTES)) {
+				compact();
+			}
+			int[] keys = segment.tree.keysToArray();
+			String[] infos = segment.tree.infoToArray();
+			byte[][] bytes = new byte[infos.length][];
+			int length = 4;
+			for (int j = 0; j < infos.length; j++) {
+				bytes[j] = (infos[j] == null) ? null : infos[j].getBytes(StandardCharsets.UTF_8);
+				length += 8 + ((bytes[j] == null) ? 0 : bytes[j].length);
+			}
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			buffer.putInt(keys.length);
+			for (int j = 0; j < keys.length; j++) {
+				buffer.putInt(keys[j]);
+				buffer.putInt((bytes[j] == null) ? -1 : bytes[j].length);
+				if (bytes[j] != null) {
+					buffer.put(bytes[j]);
+				}
+			}
+			buffer.flip();
+			try {
+				for (long position = fileEnd; buffer.hasRemaining(); ) {
+					position += channel.write(buffer, position);
+				}
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			segment.offset = fileEnd;
+			segment.length = length;
+			segment.dirty = false;
+			fileEnd += length;
+			liveBytes += length;
+		}
+		
+		/**
+		 * private Items read(Segment segment)
+		 *
+		 * reads the segment's copy in the file
+		 * complexity: O(segment size).
+		 */
+		private Items read(Segment segment) {
+			ByteBuffer buffer;
+			try {
+				buffer = readCopy(segment);
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			Items items = new Items(buffer.getInt());
+			for (int j = 0; j < items.keys.length; j++) {
+				items.keys[j] = buffer.getInt();
+				int length = buffer.getInt();
+				if (length >= 0) {
+					byte[] bytes = new byte[length];
+					buffer.get(bytes);
+					items.infos[j] = new String(bytes, StandardCharsets.UTF_8);
+				}
+			}
+			return items;
+		}
+		
+		/**
+		 * private ByteBuffer readCopy(Segment segment)
+		 *
+		 * returns the bytes of the segment's copy in the file, ready to be read.
+		 * throws IllegalStateException if the file ends before the copy does
+		 * complexity: O(segment size).
+		 */
+		private ByteBuffer readCopy(Segment segment) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(segment.length);
+			for (long position = segment.offset; buffer.hasRemaining(); ) {
+				int read = channel.read(buffer, position);
+				if (read < 0) {
+					throw new IllegalStateException("spill file ends inside the segment at " + segment.offset);
+				}
+				position += read;
+			}
+			buffer.flip();
+			return buffer;
+		}
+		
+		/**
+		 * private void compact()
+		 *
+		 * copies the live segment copies into a new file that replaces the spill file.
+		 * resident segments give up their copies and are written again when evicted.
+		 * complexity: O(bytes of the spilled segments).
+		 */
+		private void compact() {
+			Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+			FileChannel target = open(compacted);
+			long end = 0;
+			try {
+				for (Segment segment : segments) {
+					if (segment.tree == null) {
+						ByteBuffer buffer = readCopy(segment);
+						for (long position = end; buffer.hasRemaining(); ) {
+							position += target.write(buffer, position);
+						}
+						segment.offset = end;
+						end += segment.length;
+					}
+					else if (segment.offset >= 0) {
+						segment.offset = -1;
+						segment.dirty = true;
+					}
+				}
+				channel.close();
+				target.close();
+				Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			channel = open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			fileEnd = end;
+			liveBytes = end;
+			deadBytes = 0;
+		}
+		
+		private static FileChannel open(Path path) {
+			return open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+		
+		private static FileChannel open(Path path, StandardOpenOption... options) {
+			try {
+				return FileChannel.open(path, options);
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		
+		/**
+		 * the LRU list: use puts a segment at the newest end, unlink takes it out
+		 */
+		private void use(Segment segment) {
+			segment.older = newest;
+			segment.newer = null;
+			if (newest != null) {
+				newest.newer = segment;
+			}
+			newest = segment;
+			if (oldest == null) {
+				oldest = segment;
+			}
+		}
+		
+		private void unlink(Segment segment) {
+			if (segment.newer != null) {
+				segment.newer.older = segment.older;
+			}
+			else {
+				newest = segment.older;
+			}
+			if (segment.older != null) {
+				segment.older.newer = segment.newer;
+			}
+			else {
+				oldest = segment.newer;
+			}
+			segment.newer = null;
+			segment.older = null;
+		}
+		
+		/**
+		 * a range of keys: resident (tree) or a stub (tree == null, offset and length in the file)
+		 */
+		private static class Segment {
+			private AVLTree tree;
+			private long offset = -1; // of the latest copy in the file, -1 if there is none
+			private int length;
+			private boolean dirty; // changed since the copy in the file was written
+			private Segment newer; // LRU neighbours, while resident
+			private Segment older;
+		}
+		
+		private static class Items {
+			private final int[] keys;
+			private final String[] infos;
+			
+			private Items(int count) {
+				this.keys = new int[count];
+				this.infos = new String[count];
+			}
+		}
+	}
 }
\ No newline at end of file